@@ -7,7 +7,22 @@ public interface Command {
     public void execute();
 }
 
-public class LightOnCommand implements Command {
+//知道自己作用于哪个接收者的命令，调度时可以据此保证同一接收者上的命令按顺序执行
+public interface ReceiverCommand extends Command {
+    public Object getReceiver();
+}
+
+//可撤销的命令：执行前由历史记录调用saveState()把接收者的状态编码成一个long保存下来，撤销时再交回给restoreState()，命令对象本身保持无状态，可以被重复使用
+public interface UndoableCommand extends Command {
+    public long saveState();
+    public void restoreState(long state);
+}
+
+//直接把接收者设置为某个状态的命令（而不是基于当前状态做增量修改），同一接收者上连续的这类命令只有最后一个是有效的
+public interface StateSettingCommand extends ReceiverCommand {
+}
+
+public class LightOnCommand implements StateSettingCommand, UndoableCommand {
     Light light;
 
     public LigitOnCommand(Light light) {
@@ -17,6 +32,50 @@ public class LightOnCommand implements Command {
     public void execute() {
         light.on();
     }
+
+    public Object getReceiver() {
+        return light;
+    }
+
+    public long saveState() {
+        return light.isOn() ? 1 : 0;
+    }
+
+    public void restoreState(long state) {
+        if (state == 1) {
+            light.on();
+        } else {
+            light.off();
+        }
+    }
+}
+
+public class LightOffCommand implements StateSettingCommand, UndoableCommand {
+    Light light;
+
+    public LightOffCommand(Light light) {
+        this.light = light;
+    }
+
+    public void execute() {
+        light.off();
+    }
+
+    public Object getReceiver() {
+        return light;
+    }
+
+    public long saveState() {
+        return light.isOn() ? 1 : 0;
+    }
+
+    public void restoreState(long state) {
+        if (state == 1) {
+            light.on();
+        } else {
+            light.off();
+        }
+    }
 }
 
 public class SimpleRemoteControl {
@@ -48,4 +107,649 @@ public class RemoteControlTest {
 
 //一个命令对象通过在特定接收者上绑定一组动作来封装一个请求，其它对象不知道究竟哪个接收者进行了哪些动作，只知道调用execute方法，请求的目的就能达到。
 
+//延伸一，并发执行命令
+//SimpleRemoteControl.buttonWasPressed()在调用者的线程上直接执行命令，也没有办法把命令排队。当成千上万个设备的按键请求同时到达时，就需要一个命令执行器。
+//CommandExecutor把命令按接收者的哈希分配到固定的工作线程上，每个工作线程有自己的有界队列（多个生产者可同时提交）：同一个接收者（如同一盏Light）的命令总落在同一个线程上，因此保持串行且有序，不同接收者的命令则并行执行。
+//import java.util.concurrent.ArrayBlockingQueue;
+//import java.util.concurrent.BlockingQueue;
+//import java.util.concurrent.RejectedExecutionException;
+
+public class CommandExecutor {
+    private final Worker[] workers;
+    private final Thread[] threads;
+    private volatile boolean shutdown;
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder(); //从提交到执行完毕
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public CommandExecutor(int threads, int queueCapacityPerThread) {
+        workers = new Worker[threads];
+        this.threads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(queueCapacityPerThread);
+            this.threads[i] = new Thread(workers[i], "command-executor-" + i);
+            this.threads[i].setDaemon(true);
+            this.threads[i].start();
+        }
+    }
+
+    //队列满时阻塞提交者，形成反压；关闭之后的提交会被拒绝
+    public void submit(Command command) throws InterruptedException {
+        if (shutdown) {
+            throw new RejectedExecutionException("CommandExecutor is shut down");
+        }
+        Object receiver = command instanceof ReceiverCommand ? ((ReceiverCommand) command).getReceiver() : command;
+        int hash = System.identityHashCode(receiver);
+        hash ^= (hash >>> 16);
+        BlockingQueue<Task> queue = workers[(hash & 0x7fffffff) % workers.length].queue;
+        Task task = new Task(command, System.nanoTime());
+        queue.put(task);
+        if (shutdown && queue.remove(task)) { //与shutdown()同时发生，而且没有被它取走
+            throw new RejectedExecutionException("CommandExecutor is shut down");
+        }
+    }
+
+    //停止所有工作线程（正在执行的命令会执行完），返回还在队列中、没有执行的命令，由调用者决定丢弃还是重新提交
+    public List<Command> shutdown() throws InterruptedException {
+        shutdown = true;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].interrupt();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        List<Task> tasks = new ArrayList<Task>();
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].queue.drainTo(tasks);
+        }
+        List<Command> pending = new ArrayList<Command>(tasks.size());
+        for (Task task : tasks) {
+            pending.add(task.command);
+        }
+        return pending;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (int i = 0; i < workers.length; i++) {
+            depth += workers[i].queue.size();
+        }
+        return depth;
+    }
+
+    public long getExecutedCount() { return executed.sum(); }
+    public long getFailedCount() { return failed.sum(); }
+    public long getMaxLatencyNanos() { return maxLatencyNanos.get(); }
+
+    public double getAverageLatencyNanos() {
+        long count = executed.sum();
+        return count == 0 ? 0 : (double) totalLatencyNanos.sum() / count;
+    }
+
+    private static class Task {
+        final Command command;
+        final long submittedAt;
+
+        Task(Command command, long submittedAt) {
+            this.command = command;
+            this.submittedAt = submittedAt;
+        }
+    }
+
+    private class Worker implements Runnable {
+        final BlockingQueue<Task> queue;
+
+        Worker(int capacity) {
+            queue = new ArrayBlockingQueue<Task>(capacity);
+        }
+
+        public void run() {
+            while (!shutdown) {
+                Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    task.command.execute();
+                } catch (RuntimeException e) {
+                    failed.increment(); //一个命令失败不应该让整个工作线程退出
+                }
+                long latency = System.nanoTime() - task.submittedAt;
+                executed.increment();
+                totalLatencyNanos.add(latency);
+                long max;
+                while (latency > (max = maxLatencyNanos.get()) && !maxLatencyNanos.compareAndSet(max, latency)) { }
+            }
+        }
+    }
+}
+
+//遥控器这个调用者本身不需要改变，只要让它把命令交给执行器，而不是自己执行
+public class QueuedRemoteControl {
+    Command slot;
+    CommandExecutor executor;
+
+    public QueuedRemoteControl(CommandExecutor executor) {
+        this.executor = executor;
+    }
+
+    public void setCommand(Command command) {
+        slot = command;
+    }
+
+    public void buttonWasPressed() throws InterruptedException {
+        executor.submit(slot);
+    }
+}
+
+//延伸二，命令日志（内存映射的预写日志）与重放
+//命令模式说可以用日志来记录请求，这里真正把它实现出来：每个执行过的命令都被编码成几个字节，直接写入内存映射的日志段文件（不经过中间缓冲区），日志段写满就滚动到下一个文件。
+//刷盘采用组提交：写入只是内存拷贝，由后台线程每隔一段时间对所有新写入的记录做一次force()，需要确认落盘的调用者可以awaitDurable()等待。
+//重启后按顺序读取所有日志段，解码并重新执行命令，就能重建接收者的状态。
+//import java.io.*;
+//import java.lang.invoke.VarHandle;
+//import java.nio.MappedByteBuffer;
+//import java.nio.channels.FileChannel;
+//import java.nio.file.*;
+
+//负责命令与字节之间的转换，类型号0保留用来标记日志段中未写入的部分
+public interface CommandCodec {
+    public byte typeOf(Command command);
+    public int receiverIdOf(Command command);
+    public Command decode(byte type, int receiverId);
+}
+
+public class LightCommandCodec implements CommandCodec {
+    static final byte LIGHT_ON = 1;
+    static final byte LIGHT_OFF = 2;
+    Light[] lights; //接收者编号即数组下标
+    Map<Light, Integer> ids = new IdentityHashMap<Light, Integer>(); //按对象身份反查编号，append时不必逐个比较
+
+    public LightCommandCodec(Light[] lights) {
+        this.lights = lights;
+        for (int i = 0; i < lights.length; i++) {
+            ids.put(lights[i], i);
+        }
+    }
+
+    public byte typeOf(Command command) {
+        if (command instanceof LightOnCommand) {
+            return LIGHT_ON;
+        } else if (command instanceof LightOffCommand) {
+            return LIGHT_OFF;
+        }
+        throw new IllegalArgumentException("Unsupported command: " + command);
+    }
+
+    public int receiverIdOf(Command command) {
+        Object light = ((ReceiverCommand) command).getReceiver();
+        Integer id = ids.get(light);
+        if (id == null) {
+            throw new IllegalArgumentException("Unknown receiver: " + light);
+        }
+        return id;
+    }
+
+    public Command decode(byte type, int receiverId) {
+        if (type == LIGHT_ON) {
+            return new LightOnCommand(lights[receiverId]);
+        } else if (type == LIGHT_OFF) {
+            return new LightOffCommand(lights[receiverId]);
+        }
+        throw new IllegalArgumentException("Unknown command type: " + type);
+    }
+}
+
+public class CommandJournal implements Closeable {
+    //1字节类型 + 3字节填充 + 4字节接收者编号。补齐到8字节后记录不会跨越4KiB的页：
+    //操作系统崩溃时各个页独立落盘，跨页的记录可能只有类型字节所在的页写到了磁盘，重放时就会作用到错误的接收者上
+    static final int RECORD_SIZE = 8;
+    static final int RECEIVER_OFFSET = 4;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final CommandCodec codec;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private long appended;        //已写入的记录数
+    private volatile long durable; //已刷盘的记录数
+    private final Thread flusher;
+
+    public CommandJournal(Path directory, int segmentSize, CommandCodec codec, final long flushIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize - segmentSize % RECORD_SIZE;
+        this.codec = codec;
+        Files.createDirectories(directory);
+        segmentIndex = Math.max(countSegments(directory) - 1, 0); //最后一个日志段可能还没写满，继续追加到它上面
+        openSegment(segmentIndex);
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        Thread.sleep(flushIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    flush();
+                }
+            }
+        }, "command-journal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    //只是把几个字节写进映射内存，耗时在微秒级以下；返回记录的序号
+    public synchronized long append(Command command) throws IOException {
+        if (segment.remaining() < RECORD_SIZE) {
+            segment.force();
+            channel.close();
+            openSegment(++segmentIndex);
+        }
+        byte type = codec.typeOf(command);
+        int receiverId = codec.receiverIdOf(command);
+        int position = segment.position();
+        //类型字节是重放时“记录存在”的标记，所以最后写：进程在两次写入之间退出时，这条记录在重放时会被当作未写入
+        segment.putInt(position + RECEIVER_OFFSET, receiverId);
+        VarHandle.releaseFence();
+        segment.put(position, type);
+        segment.position(position + RECORD_SIZE);
+        return appended++;
+    }
+
+    //组提交：一次force()让这期间所有追加的记录一起落盘
+    //锁内只记下要刷到的位置，force()在锁外进行，刷盘期间append()不会被阻塞
+    public void flush() {
+        long target;
+        MappedByteBuffer toForce;
+        int length;
+        synchronized (this) {
+            target = appended;
+            if (target <= durable) {
+                return;
+            }
+            toForce = segment; //之前的日志段在滚动时已经整个force()过了
+            length = segment.position();
+        }
+        toForce.force(0, length);
+        synchronized (this) {
+            if (target > durable) { //close()与后台线程可能同时刷盘，durable只能前进
+                durable = target;
+            }
+            notifyAll();
+        }
+    }
+
+    public synchronized void awaitDurable(long sequence) throws InterruptedException {
+        while (durable <= sequence) {
+            wait();
+        }
+    }
+
+    //按顺序重放所有日志段中的命令
+    public static long replay(Path directory, CommandCodec codec) throws IOException {
+        long replayed = 0;
+        int segments = countSegments(directory);
+        for (int i = 0; i < segments; i++) {
+            FileChannel channel = FileChannel.open(segmentPath(directory, i), StandardOpenOption.READ);
+            try {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                while (buffer.remaining() >= RECORD_SIZE) {
+                    int position = buffer.position();
+                    byte type = buffer.get(position);
+                    int receiverId = buffer.getInt(position + RECEIVER_OFFSET);
+                    buffer.position(position + RECORD_SIZE);
+                    if (type == 0) {
+                        break; //到达已写入部分的末尾
+                    }
+                    codec.decode(type, receiverId).execute();
+                    replayed++;
+                }
+            } finally {
+                channel.close();
+            }
+        }
+        return replayed;
+    }
+
+    public void close() throws IOException {
+        flusher.interrupt();
+        flush();
+        synchronized (this) {
+            channel.close();
+        }
+    }
+
+    private void openSegment(int index) throws IOException {
+        channel = FileChannel.open(segmentPath(directory, index),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        while (segment.remaining() >= RECORD_SIZE && segment.get(segment.position()) != 0) {
+            segment.position(segment.position() + RECORD_SIZE); //重新打开已有的日志段时跳过已写入的记录
+        }
+    }
+
+    private static Path segmentPath(Path directory, int index) {
+        return directory.resolve(String.format("commands-%08d.log", index));
+    }
+
+    private static int countSegments(Path directory) {
+        int count = 0;
+        while (Files.exists(segmentPath(directory, count))) {
+            count++;
+        }
+        return count;
+    }
+}
+
+//带日志的遥控器：先执行，再记录
+public class JournaledRemoteControl {
+    Command slot;
+    CommandJournal journal;
+
+    public JournaledRemoteControl(CommandJournal journal) {
+        this.journal = journal;
+    }
+
+    public void setCommand(Command command) {
+        slot = command;
+    }
+
+    public void buttonWasPressed() throws IOException {
+        slot.execute();
+        journal.append(slot);
+    }
+}
+
+//延伸三，命令的批处理与合并
+//一些客户端会对同一盏灯连续发出开/关/开/关这样的请求，逐个执行既浪费又没有意义。
+//CommandBatcher放在执行器前面，在一个小的时间窗口或数量窗口内收集命令，按接收者分组后合并掉多余的命令：同一接收者上连续的StateSettingCommand只保留最后一个（中间夹着其它类型的命令时不合并，以免改变语义）。
+//剩下的命令按原来的顺序组成每个接收者一个的宏命令，交给CommandExecutor执行。
+//import java.util.concurrent.ScheduledExecutorService;
+
+//宏命令：依次执行一组作用于同一接收者的命令
+public class MacroCommand implements ReceiverCommand {
+    Object receiver;
+    Command[] commands;
+
+    public MacroCommand(Object receiver, Command[] commands) {
+        this.receiver = receiver;
+        this.commands = commands;
+    }
+
+    public void execute() {
+        for (int i = 0; i < commands.length; i++) {
+            commands[i].execute();
+        }
+    }
+
+    public Object getReceiver() {
+        return receiver;
+    }
+}
+
+public class CommandBatcher {
+    private final CommandExecutor executor;
+    private final int maxBatchSize;
+    private List<Command> pending = new ArrayList<Command>();
+    //定时刷新与批次满时的刷新可能同时发生，取批次和提交给执行器必须一起串行，否则后取的批次可能先到达执行器，打乱同一接收者上的顺序
+    private final Object flushLock = new Object();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    public CommandBatcher(CommandExecutor executor, int maxBatchSize, long windowMillis, ScheduledExecutorService scheduler) {
+        this.executor = executor;
+        this.maxBatchSize = maxBatchSize;
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    flush();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void submit(Command command) throws InterruptedException {
+        boolean full;
+        synchronized (this) {
+            pending.add(command);
+            full = pending.size() >= maxBatchSize;
+        }
+        received.increment();
+        if (full) {
+            flush();
+        }
+    }
+
+    public void flush() throws InterruptedException {
+        synchronized (flushLock) {
+            List<Command> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                pending = new ArrayList<Command>();
+            }
+            submitBatch(batch);
+        }
+    }
+
+    private void submitBatch(List<Command> batch) throws InterruptedException {
+        //按接收者分组，保持各接收者内部的先后顺序
+        Map<Object, List<Command>> groups = new LinkedHashMap<Object, List<Command>>();
+        for (Command command : batch) {
+            Object receiver = command instanceof ReceiverCommand ? ((ReceiverCommand) command).getReceiver() : command;
+            List<Command> group = groups.get(receiver);
+            if (group == null) {
+                group = new ArrayList<Command>();
+                groups.put(receiver, group);
+            }
+            Command last = group.isEmpty() ? null : group.get(group.size() - 1);
+            if (last instanceof StateSettingCommand && command instanceof StateSettingCommand) {
+                group.set(group.size() - 1, command); //后一个状态覆盖前一个，例如开接着关只剩下关
+                coalesced.increment();
+            } else {
+                group.add(command);
+            }
+        }
+        for (Map.Entry<Object, List<Command>> group : groups.entrySet()) {
+            List<Command> commands = group.getValue();
+            executor.submit(commands.size() == 1 ? commands.get(0)
+                    : new MacroCommand(group.getKey(), commands.toArray(new Command[commands.size()])));
+        }
+    }
+
+    public long getReceivedCount() { return received.sum(); }
+    public long getCoalescedCount() { return coalesced.sum(); }
+}
+
+//延伸四，有界的撤销/重做历史
+//书中常用一个Stack保存执行过的命令来实现撤销，但每次压栈都会分配对象，历史也会无限增长。
+//UndoHistory用固定容量的环形缓冲区保存最近capacity个命令：一个Command[]保存命令引用，一个long[]保存执行前接收者的状态，填满后覆盖最旧的记录，预热后压入不再分配任何对象。
+//内存上限是明确的：capacity个引用 + capacity个long，即大约capacity * 12～16字节（不计命令对象本身，它们是共享的）。
+
+public class UndoHistory {
+    private final Command[] commands;
+    private final long[] states;
+    private int head;   //最旧一条记录的位置
+    private int size;   //有效记录数（包括可以重做的）
+    private int cursor; //可以撤销的记录数，cursor之后的是可以重做的
+
+    public UndoHistory(int capacity) {
+        commands = new Command[capacity];
+        states = new long[capacity];
+    }
+
+    public void execute(UndoableCommand command) {
+        long state = command.saveState();
+        command.execute();
+        if (cursor == commands.length) { //已满，丢弃最旧的一条
+            head = (head + 1) % commands.length;
+            cursor--;
+        }
+        int i = (head + cursor) % commands.length;
+        commands[i] = command;
+        states[i] = state;
+        cursor++;
+        size = cursor; //执行新命令后，原来可以重做的记录作废
+    }
+
+    public boolean undo() {
+        if (cursor == 0) {
+            return false;
+        }
+        cursor--;
+        int i = (head + cursor) % commands.length;
+        ((UndoableCommand) commands[i]).restoreState(states[i]);
+        return true;
+    }
+
+    public boolean redo() {
+        if (cursor == size) {
+            return false;
+        }
+        int i = (head + cursor) % commands.length;
+        UndoableCommand command = (UndoableCommand) commands[i];
+        states[i] = command.saveState();
+        command.execute();
+        cursor++;
+        return true;
+    }
+
+    public int getCapacity() { return commands.length; }
+    public int getUndoDepth() { return cursor; }
+    public int getRedoDepth() { return size - cursor; }
+}
+
+public class UndoableRemoteControl {
+    UndoableCommand slot;
+    UndoHistory history;
+
+    public UndoableRemoteControl(int historyDepth) {
+        history = new UndoHistory(historyDepth);
+    }
+
+    public void setCommand(UndoableCommand command) {
+        slot = command;
+    }
+
+    public void buttonWasPressed() {
+        history.execute(slot);
+    }
+
+    public void undoButtonWasPressed() {
+        history.undo();
+    }
+
+    public void redoButtonWasPressed() {
+        history.redo();
+    }
+}
+
+//延伸五，多插槽遥控器与插槽统计
+//SimpleRemoteControl只有一个插槽，而且setCommand没有做任何同步。这里做一个N个插槽的遥控器：其它线程在按按钮的同时，也可以在运行期重新配置插槽或调整插槽数量。
+//插槽表是一个volatile的不可变数组，按按钮时只读一次数组引用和插槽中的volatile命令，不加锁；重新配置时替换插槽中的命令，调整数量时复制出新的插槽表再整体替换。
+//每个插槽都记录按下次数、失败次数和执行时间的直方图，计数器用LongAdder分段累加，多线程同时按同一个按钮也不会争抢同一个缓存行。
+
+public class SlotMetrics {
+    static final int BUCKETS = 40; //第i个桶统计执行时间在[2^i, 2^(i+1))纳秒的次数
+    final LongAdder presses = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+    SlotMetrics() {
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        histogram[Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(Math.max(nanos, 1)))].increment();
+    }
+
+    public long getPressCount() { return presses.sum(); }
+    public long getFailureCount() { return failures.sum(); }
+
+    //按直方图估算分位数（返回所在桶的上界）
+    public long getPercentileNanos(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram[i].sum();
+            total += counts[i];
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return 1L << (i + 1);
+            }
+        }
+        return 0;
+    }
+}
+
+public class MultiSlotRemoteControl {
+    static class Slot {
+        volatile Command command;
+        final SlotMetrics metrics = new SlotMetrics();
+    }
+
+    private volatile Slot[] slots;
+
+    public MultiSlotRemoteControl(int slotCount) {
+        slots = newSlots(new Slot[0], slotCount);
+    }
+
+    public void setCommand(int slot, Command command) {
+        slots[slot].command = command;
+    }
+
+    //调整插槽数量，已有插槽的命令和统计保留
+    public synchronized void resize(int slotCount) {
+        slots = newSlots(slots, slotCount);
+    }
+
+    public void buttonWasPressed(int slot) {
+        Slot s = slots[slot];
+        Command command = s.command;
+        if (command == null) {
+            return; //空插槽
+        }
+        s.metrics.presses.increment();
+        long start = System.nanoTime();
+        try {
+            command.execute();
+        } catch (RuntimeException e) {
+            s.metrics.failures.increment();
+            throw e;
+        } finally {
+            s.metrics.record(System.nanoTime() - start);
+        }
+    }
+
+    public int getSlotCount() {
+        return slots.length;
+    }
+
+    public SlotMetrics getMetrics(int slot) {
+        return slots[slot].metrics;
+    }
+
+    private static Slot[] newSlots(Slot[] old, int slotCount) {
+        Slot[] next = Arrays.copyOf(old, slotCount);
+        for (int i = old.length; i < slotCount; i++) {
+            next[i] = new Slot();
+        }
+        return next;
+    }
+}
+
 //总结，命令模式将“请求”封装成对象，以便使用不同的请求、队列或者日志来参数化其它对象，命令模式也支持可撤销的操作。
\ No newline at end of file
@@ -20,6 +20,11 @@ public abstract class Beverage { //当然也可以是接口
 
 public abstract class CondimentDecorator extends Beverage {
     public abstract String getDescription();
+
+    //以下三个方法让外部可以不递归地逐层展开装饰链（见后面的CompiledBeverage）
+    public abstract Beverage getBeverage(); //被装饰的下一层
+    public abstract String getCondimentName();
+    public abstract double getCondimentCost();
 }
 
 //基础饮品（第一层被装饰的）
@@ -58,9 +63,290 @@ public class Mocha extends CondimentDecorator {
     public double cost() {
         return 0.20 + beverage.cost();
     }
+
+    public Beverage getBeverage() {
+        return beverage;
+    }
+
+    public String getCondimentName() {
+        return "Mocha";
+    }
+
+    public double getCondimentCost() {
+        return 0.20;
+    }
 }
 
 //装饰者可以在被装饰者的行为前面或/与后面加上自己的行为，甚至将被装饰者的行为整个取代掉，而达到特定的目的。
 //可以使用无数个装饰者去包装一个组件，因为装饰者一般对组件的客户是透明的，除非客户依赖的组件是具体类型，当然简单的只包一层也是可以的（不一定要使用上面例子中的嵌套同类的实例对象在类中）。
 
+//延伸一，把很深的装饰链“编译”成一个扁平的饮品
+//Mocha.cost()返回0.20 + beverage.cost()，getDescription()也是一层层拼接字符串，所以加了50种调料的饮品每次计价都要O(深度)次虚方法调用和O(深度²)的字符串拼接，装饰链太深时还可能StackOverflowError。
+//CompiledBeverage.compile()用循环（而不是递归）把装饰链展开一次，预先算好价格、生成描述，得到一个不可变的Beverage，可以直接替代原来的装饰链使用。
+//价格按从内到外的顺序累加，与递归计算的浮点结果完全一致。
+
+public final class CompiledBeverage extends Beverage {
+    private final Beverage base;
+    private final List<String> condiments; //从内到外的调料
+    private final double cost;
+
+    private CompiledBeverage(Beverage base, List<String> condiments, double cost, String description) {
+        this.base = base;
+        this.condiments = Collections.unmodifiableList(condiments);
+        this.cost = cost;
+        this.description = description;
+    }
+
+    public static Beverage compile(Beverage beverage) {
+        if (beverage instanceof CompiledBeverage) {
+            return beverage;
+        }
+        List<CondimentDecorator> layers = new ArrayList<CondimentDecorator>(); //从外到内
+        while (beverage instanceof CondimentDecorator) {
+            CondimentDecorator decorator = (CondimentDecorator) beverage;
+            layers.add(decorator);
+            beverage = decorator.getBeverage();
+        }
+        double cost = beverage.cost();
+        StringBuilder description = new StringBuilder(beverage.getDescription());
+        List<String> condiments = new ArrayList<String>(layers.size());
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            CondimentDecorator decorator = layers.get(i);
+            cost = decorator.getCondimentCost() + cost;
+            description.append(", ").append(decorator.getCondimentName());
+            condiments.add(decorator.getCondimentName());
+        }
+        return new CompiledBeverage(beverage, condiments, cost, description.toString());
+    }
+
+    public double cost() {
+        return cost;
+    }
+
+    public Beverage getBase() {
+        return base;
+    }
+
+    public List<String> getCondiments() {
+        return condiments;
+    }
+}
+
+//用JMH对比递归装饰链与编译后的饮品的计价开销（cost() + getDescription()）
+//import org.openjdk.jmh.annotations.*;
+
+@org.openjdk.jmh.annotations.State(Scope.Benchmark) //与本仓库中的State接口同名，故写全限定名
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class CompiledBeverageBenchmark {
+    @Param({"1", "10", "50"})
+    int depth;
+
+    Beverage chain;
+    Beverage compiled;
+
+    @Setup
+    public void setUp() {
+        chain = new Espresso();
+        for (int i = 0; i < depth; i++) {
+            chain = new Mocha(chain);
+        }
+        compiled = CompiledBeverage.compile(chain);
+    }
+
+    @Benchmark
+    public double recursiveCost() {
+        return chain.cost();
+    }
+
+    @Benchmark
+    public String recursiveDescription() {
+        return chain.getDescription();
+    }
+
+    @Benchmark
+    public double compiledCost() {
+        return compiled.cost();
+    }
+
+    @Benchmark
+    public String compiledDescription() {
+        return compiled.getDescription();
+    }
+}
+
+//延伸二，用定点数批量计价
+//Beverage.cost()返回double（如Espresso的1.99，Mocha的0.20），累加时会有误差，而且每个订单都要逐个对象地计价。日终对账时要计算上百万个订单。
+//BulkPricingEngine把订单编码成原始类型数组：每个订单一个基础饮品编号，调料编号按订单连续地存放在一个数组里，再用偏移数组标出每个订单的调料区间（类似稀疏矩阵的CSR格式）。
+//价格统一换算成以分为单位的long，计价就是对几个数组的紧凑循环；订单量大时用fork/join拆分成多段并行计算。
+//价格表来自饮品和调料对象本身（四舍五入到分），所以结果与把装饰链的cost()四舍五入到分完全一致，只是不再有累加误差。
+//import java.util.concurrent.ForkJoinPool;
+//import java.util.concurrent.RecursiveTask;
+
+public class BulkPricingEngine {
+    static final int PARALLEL_THRESHOLD = 1 << 14; //少于这个数量的订单直接在当前线程计算
+
+    private final long[] baseCents;
+    private final long[] condimentCents;
+    private final ForkJoinPool pool;
+
+    //beverages[i]的编号为i；condiments[j]的编号为j，只取用它自身的调料价格
+    public BulkPricingEngine(Beverage[] beverages, CondimentDecorator[] condiments, ForkJoinPool pool) {
+        baseCents = new long[beverages.length];
+        for (int i = 0; i < beverages.length; i++) {
+            baseCents[i] = Math.round(beverages[i].cost() * 100);
+        }
+        condimentCents = new long[condiments.length];
+        for (int i = 0; i < condiments.length; i++) {
+            condimentCents[i] = Math.round(condiments[i].getCondimentCost() * 100);
+        }
+        this.pool = pool;
+    }
+
+    //第i个订单的调料是condimentIds[condimentOffsets[i]]到condimentIds[condimentOffsets[i+1]-1]，所以condimentOffsets的长度是订单数+1
+    //每个订单的价格写入totals，返回所有订单的总价（分）
+    public long price(int[] baseIds, int[] condimentOffsets, int[] condimentIds, long[] totals) {
+        if (baseIds.length < PARALLEL_THRESHOLD) {
+            return price(baseIds, condimentOffsets, condimentIds, totals, 0, baseIds.length);
+        }
+        return pool.invoke(new PricingTask(baseIds, condimentOffsets, condimentIds, totals, 0, baseIds.length));
+    }
+
+    long price(int[] baseIds, int[] condimentOffsets, int[] condimentIds, long[] totals, int from, int to) {
+        long[] baseCents = this.baseCents;
+        long[] condimentCents = this.condimentCents;
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            long total = baseCents[baseIds[i]];
+            for (int j = condimentOffsets[i], end = condimentOffsets[i + 1]; j < end; j++) {
+                total += condimentCents[condimentIds[j]];
+            }
+            totals[i] = total;
+            sum += total;
+        }
+        return sum;
+    }
+
+    private class PricingTask extends RecursiveTask<Long> {
+        final int[] baseIds;
+        final int[] condimentOffsets;
+        final int[] condimentIds;
+        final long[] totals;
+        final int from;
+        final int to;
+
+        PricingTask(int[] baseIds, int[] condimentOffsets, int[] condimentIds, long[] totals, int from, int to) {
+            this.baseIds = baseIds;
+            this.condimentOffsets = condimentOffsets;
+            this.condimentIds = condimentIds;
+            this.totals = totals;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected Long compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                return price(baseIds, condimentOffsets, condimentIds, totals, from, to);
+            }
+            int mid = (from + to) >>> 1;
+            PricingTask left = new PricingTask(baseIds, condimentOffsets, condimentIds, totals, from, mid);
+            left.fork();
+            long right = new PricingTask(baseIds, condimentOffsets, condimentIds, totals, mid, to).compute();
+            return left.join() + right;
+        }
+    }
+}
+
+//示例：两杯订单，Espresso加两份Mocha，HouseBlend什么都不加
+//BulkPricingEngine engine = new BulkPricingEngine(new Beverage[] { new Espresso(), new HouseBlend() }, new CondimentDecorator[] { new Mocha(null) }, ForkJoinPool.commonPool());
+//long[] totals = new long[2];
+//long sum = engine.price(new int[] { 0, 1 }, new int[] { 0, 2, 2 }, new int[] { 0, 0 }, totals); //totals为{239, 89}，sum为328
+
+//延伸三，享元：缓存常见组合的饮品
+//每个订单都重新new一条Mocha(new Mocha(new Espresso()))装饰链，而实际订单绝大多数都集中在几百种组合上。
+//BeverageCache以“基础饮品类型 + 调料的多重集合”为键（调料与添加顺序无关，按类名排序后作为键），缓存编译好的不可变饮品（见CompiledBeverage），价格和描述都已算好，可以被所有订单共享。
+//缓存容量有上限，按LRU淘汰，并统计命中、未命中和淘汰次数。只有未命中时才通过反射构造一次装饰链。
+
+public class BeverageCache {
+    private final Map<Key, Beverage> cache;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public BeverageCache(final int maxSize) {
+        cache = new LinkedHashMap<Key, Beverage>(16, 0.75f, true) { //按访问顺序排列，最久未访问的在最前面
+            protected boolean removeEldestEntry(Map.Entry<Key, Beverage> eldest) {
+                if (size() > maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized Beverage get(Class<? extends Beverage> base, Class<? extends CondimentDecorator>... condiments) {
+        Class<?>[] sorted = condiments.clone();
+        Arrays.sort(sorted, new Comparator<Class<?>>() {
+            public int compare(Class<?> a, Class<?> b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        Key key = new Key(base, sorted);
+        Beverage beverage = cache.get(key);
+        if (beverage != null) {
+            hits++;
+            return beverage;
+        }
+        misses++;
+        beverage = CompiledBeverage.compile(build(base, sorted));
+        cache.put(key, beverage);
+        return beverage;
+    }
+
+    public synchronized long getHitCount() { return hits; }
+    public synchronized long getMissCount() { return misses; }
+    public synchronized long getEvictionCount() { return evictions; }
+    public synchronized int size() { return cache.size(); }
+
+    private static Beverage build(Class<? extends Beverage> base, Class<?>[] condiments) {
+        try {
+            Beverage beverage = base.getConstructor().newInstance();
+            for (int i = 0; i < condiments.length; i++) {
+                beverage = (Beverage) condiments[i].getConstructor(Beverage.class).newInstance(beverage);
+            }
+            return beverage;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Cannot build beverage " + base.getSimpleName(), e);
+        }
+    }
+
+    private static final class Key {
+        final Class<?> base;
+        final Class<?>[] condiments;
+        final int hash;
+
+        Key(Class<?> base, Class<?>[] condiments) {
+            this.base = base;
+            this.condiments = condiments;
+            this.hash = 31 * base.hashCode() + Arrays.hashCode(condiments);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return base == other.base && Arrays.equals(condiments, other.condiments);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
+
+//用法：Beverage beverage = cache.get(Espresso.class, Mocha.class, Mocha.class); 之后相同组合的订单拿到的都是同一个实例
+
 //总结，装饰者模式动态地将责任附加到对象上，若要扩展功能，装饰者提供了比继承更有弹性的替代方案。这是一个符合对扩展开放，对修改关闭原则的模式。
\ No newline at end of file
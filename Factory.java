@@ -59,13 +59,24 @@ public class SimplePizzaFactory {
 
 //方案三，使用“工厂方法”，来监控创建的披萨质量（当然还是可以继承方案二中的简单工厂，提供不同的子类工厂给PizzaStore来创建，这也是工厂方法，但PizzaStore就无法过多地干预创建的过程）
 public abstract class PizzaStore3 {
+    //制作披萨的步骤及其顺序只在这里定义一次，orderPizza和后面的流水线（PizzaPipeline）都按它来执行
+    public enum Step {
+        PREPARE { void apply(Pizza pizza) { pizza.prepare(); } },
+        BAKE    { void apply(Pizza pizza) { pizza.bake(); } },
+        CUT     { void apply(Pizza pizza) { pizza.cut(); } },
+        BOX     { void apply(Pizza pizza) { pizza.box(); } };
+
+        abstract void apply(Pizza pizza);
+    }
+
+    private static final Step[] STEPS = Step.values(); //values()每次都会复制数组
+
     public Pizza orderPizza(String type) {
         Pizza pizza;
         pizza = createPizza(type);
-        pizza.prepare();
-        pizza.bake();
-        pizza.cut();
-        pizza.box();
+        for (Step step : STEPS) {
+            step.apply(pizza);
+        }
         return pizza;
     }
     abstract Pizza createPizza(String type);
@@ -193,4 +204,544 @@ public class ChicagoPizzaStore4 extends PizzaStore3 {
 
 //同时可以看到，NYPizzaIngredientFactory和ChicagoPizzaIngredientFactory里其实都用到了“工厂方法模式”，只是方法不止一个，是包括了创建这个产品的家族的多个方法。
 
-//抽象工厂模式提供一个接口，用于创建相关或者依赖对象的家族，而不需要明确指定具体类。
\ No newline at end of file
+//抽象工厂模式提供一个接口，用于创建相关或者依赖对象的家族，而不需要明确指定具体类。
+
+//延伸一，预先计算好的分派表
+//SimplePizzaFactory.createPizza、NYPizzaStore3.createPizza和*PizzaStore4都是用if (type.equals("cheese")) ... else if 来判断类型，菜单越长比较次数越多，遇到未知的类型还会返回null。
+//RegistryPizzaFactory在启动时登记所有类型及其构造方法，然后freeze()编译出一张完美哈希表：表长与类型数成正比，每个类型名都有自己独占的槽位，之后每次查找只需两次取位和一次equals，与菜单长度无关。
+//重复登记、冻结后登记、创建未登记的类型都会立即抛出异常，而不是返回null。
+//import java.util.function.Supplier;
+
+public class RegistryPizzaFactory {
+    private final Map<String, Supplier<? extends Pizza>> registrations = new LinkedHashMap<String, Supplier<? extends Pizza>>();
+    private String[] keys;
+    private Supplier<? extends Pizza>[] suppliers;
+    private int[] seeds; //每个桶的种子
+    private int mask;
+    private static final int MAX_SEED = 1 << 20;
+
+    public RegistryPizzaFactory register(String type, Supplier<? extends Pizza> supplier) {
+        if (keys != null) {
+            throw new IllegalStateException("Factory is frozen, cannot register " + type);
+        }
+        if (registrations.containsKey(type)) {
+            throw new IllegalArgumentException("Pizza type already registered: " + type);
+        }
+        registrations.put(type, supplier);
+        return this;
+    }
+
+    //哈希加位移（hash and displace）：先按hashCode把类型名分进若干个桶，再从最大的桶开始，为每个桶找一个种子，
+    //使桶内所有类型名按带种子的哈希落在表中互不相同的空位上。表长与类型数成正比；
+    //hashCode相同的类型名（如"Aa"和"BB"）会落进同一个桶，但带种子的哈希是逐个字符重新计算的，仍然能把它们分开
+    @SuppressWarnings("unchecked")
+    public RegistryPizzaFactory freeze() {
+        int n = registrations.size();
+        int size = Integer.highestOneBit(Math.max(1, n * 2 - 1)) << 1; //表长为2n到4n之间的2的幂
+        int bucketCount = Integer.highestOneBit(Math.max(1, n)); //平均每个桶1到2个类型名
+        final List<String>[] buckets = new List[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new ArrayList<String>();
+        }
+        for (String type : registrations.keySet()) {
+            buckets[spread(type.hashCode()) & (bucketCount - 1)].add(type);
+        }
+        Integer[] order = new Integer[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> buckets[b].size() - buckets[a].size()); //大桶先放，越往后空位越少，小桶越容易放下
+
+        String[] table = new String[size];
+        Supplier<? extends Pizza>[] values = new Supplier[size];
+        int[] bucketSeeds = new int[bucketCount];
+        int[] slots = new int[n];
+        for (int b : order) {
+            List<String> bucket = buckets[b];
+            if (bucket.isEmpty()) {
+                break;
+            }
+            int seed = 1;
+            while (!fits(bucket, seed, table, slots)) {
+                if (++seed > MAX_SEED) {
+                    throw new IllegalStateException("No perfect hash for " + bucket);
+                }
+            }
+            for (int i = 0; i < bucket.size(); i++) {
+                table[slots[i]] = bucket.get(i);
+                values[slots[i]] = registrations.get(bucket.get(i));
+            }
+            bucketSeeds[b] = seed;
+        }
+        keys = table;
+        suppliers = values;
+        seeds = bucketSeeds;
+        mask = size - 1;
+        return this;
+    }
+
+    public Pizza createPizza(String type) {
+        return creatorFor(type).get();
+    }
+
+    //只查找一次，返回该类型的构造方法，批量创建同一类型时可以反复调用
+    public Supplier<? extends Pizza> creatorFor(String type) {
+        if (keys == null) {
+            throw new IllegalStateException("Factory is not frozen, call freeze() before createPizza");
+        }
+        int slot = hash(type, seeds[spread(type.hashCode()) & (seeds.length - 1)]) & mask;
+        if (!type.equals(keys[slot])) {
+            throw new IllegalArgumentException("Unknown pizza type: " + type);
+        }
+        return suppliers[slot];
+    }
+
+    //用这个种子时，桶内所有类型名是否都落在互不相同的空位上；落点记在slots中
+    private boolean fits(List<String> bucket, int seed, String[] table, int[] slots) {
+        for (int i = 0; i < bucket.size(); i++) {
+            int slot = hash(bucket.get(i), seed) & (table.length - 1);
+            if (table[slot] != null) {
+                return false;
+            }
+            for (int j = 0; j < i; j++) {
+                if (slots[j] == slot) {
+                    return false;
+                }
+            }
+            slots[i] = slot;
+        }
+        return true;
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9; //黄金分割数，把高位的差异扩散到低位
+        return h ^ (h >>> 16);
+    }
+
+    //带种子的FNV-1a风格哈希，直接基于字符计算，不依赖String.hashCode()
+    private static int hash(String key, int seed) {
+        int h = seed * 0x9E3779B9;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
+
+//有了分派表，加盟店只需在构造时登记自己的菜单
+public class NYPizzaStore5 extends PizzaStore3 {
+    private final RegistryPizzaFactory factory;
+
+    public NYPizzaStore5() {
+        final PizzaIngredientFactory ingredientFactory = new NYPizzaIngredientFactory();
+        factory = new RegistryPizzaFactory()
+                .register("cheese", () -> new CheesePizza(ingredientFactory))
+                .register("clam", () -> new ClamPizza(ingredientFactory))
+                .freeze();
+    }
+
+    protected Pizza createPizza(String type) {
+        return factory.createPizza(type);
+    }
+}
+
+//用JMH对比equals链与分派表，菜单有5、50、500种披萨。equals链按登记顺序逐个比较，与手写的if-else if等价；查找的类型在菜单中均匀分布
+//import org.openjdk.jmh.annotations.*;
+
+@org.openjdk.jmh.annotations.State(Scope.Benchmark) //与本仓库中的State接口同名，故写全限定名
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class PizzaFactoryBenchmark {
+    @Param({"5", "50", "500"})
+    int menuSize;
+
+    String[] types;
+    Supplier<Pizza>[] chain;
+    RegistryPizzaFactory registry;
+    int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        final PizzaIngredientFactory ingredientFactory = new NYPizzaIngredientFactory();
+        types = new String[menuSize];
+        chain = new Supplier[menuSize];
+        registry = new RegistryPizzaFactory();
+        for (int i = 0; i < menuSize; i++) {
+            types[i] = "pizza-" + i;
+            chain[i] = () -> new CheesePizza(ingredientFactory);
+            registry.register(types[i], chain[i]);
+        }
+        registry.freeze();
+    }
+
+    @Benchmark
+    public Pizza equalsChain() {
+        String type = nextType();
+        for (int i = 0; i < types.length; i++) {
+            if (type.equals(types[i])) {
+                return chain[i].get();
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public Pizza registry() {
+        return registry.createPizza(nextType());
+    }
+
+    private String nextType() {
+        next = next + 1 == types.length ? 0 : next + 1;
+        return types[next];
+    }
+}
+
+//延伸二，共享的原料享元与按地区登记的原料工厂
+//NYPizzaStore4和ChicagoPizzaStore4每次createPizza都会new一个原料工厂，CheesePizza.prepare()又每次new出ThinCrustDough、MarinaraSauce，而这些原料对象都是无状态的。
+//FlyweightIngredientFactory包装一个原料工厂，每种原料只向它要一次，之后一直返回同一个不可变的实例；IngredientFactories按地区保存这些工厂的单例。
+//这样一个披萨订单除了披萨对象本身外，几乎不再分配原料相关的对象。
+
+public class FlyweightIngredientFactory implements PizzaIngredientFactory {
+    private final Dough dough;
+    private final Sauce sauce;
+
+    public FlyweightIngredientFactory(PizzaIngredientFactory factory) {
+        this.dough = factory.createDough();
+        this.sauce = factory.createSauce();
+    }
+
+    public Dough createDough() {
+        return dough;
+    }
+
+    public Sauce createSauce() {
+        return sauce;
+    }
+}
+
+public final class IngredientFactories {
+    private static final Map<String, PizzaIngredientFactory> FACTORIES = new HashMap<String, PizzaIngredientFactory>();
+
+    static {
+        FACTORIES.put("NY", new FlyweightIngredientFactory(new NYPizzaIngredientFactory()));
+        FACTORIES.put("Chicago", new FlyweightIngredientFactory(new ChicagoPizzaIngredientFactory()));
+    }
+
+    private IngredientFactories() { }
+
+    public static PizzaIngredientFactory forRegion(String region) {
+        PizzaIngredientFactory factory = FACTORIES.get(region);
+        if (factory == null) {
+            throw new IllegalArgumentException("Unknown region: " + region);
+        }
+        return factory;
+    }
+}
+
+public class NYPizzaStore6 extends PizzaStore3 {
+    protected Pizza createPizza(String type) {
+        PizzaIngredientFactory ingredientFactory = IngredientFactories.forRegion("NY"); //共享的单例，不再每次new
+
+        if (type.equals("cheese")) {
+            return new CheesePizza(ingredientFactory);
+        } else if (type.equals("clam")) {
+            return new ClamPizza(ingredientFactory);
+        }
+        throw new IllegalArgumentException("Unknown pizza type: " + type);
+    }
+}
+
+// 同理，实现 ChicagoPizzaStore6。
+
+//用JMH的gc profiler对比每个订单的分配量（看gc.alloc.rate.norm，单位是字节/次）
+//import org.openjdk.jmh.annotations.*;
+//import org.openjdk.jmh.profile.GCProfiler;
+
+@org.openjdk.jmh.annotations.State(Scope.Benchmark) //与本仓库中的State接口同名，故写全限定名
+@BenchmarkMode(Mode.Throughput)
+@Fork(value = 1, jvmArgsAppend = "-XX:-DoEscapeAnalysis") //关闭逃逸分析，看到的才是真实的分配
+public class IngredientAllocationBenchmark {
+    PizzaStore3 store4 = new NYPizzaStore4();
+    PizzaStore3 store6 = new NYPizzaStore6();
+
+    @Benchmark
+    public Pizza newFactoryPerOrder() {
+        return store4.orderPizza("cheese");
+    }
+
+    @Benchmark
+    public Pizza sharedFlyweights() {
+        return store6.orderPizza("cheese");
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(IngredientAllocationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
+
+//延伸三，流水线式地制作披萨
+//PizzaStore3.orderPizza在调用者线程上依次执行prepare()、bake()、cut()、box()，一次只做一个披萨，吞吐受限于四个步骤的耗时之和。
+//PizzaPipeline为PizzaStore3.Step的每一步建立一个工位：每个工位有自己的工作线程（数量可配置）和一个有界的输入队列，做完一步就交给下一个工位的队列，队列满时上游会等待（反压）。
+//这样同时有很多订单在不同的工位上制作，吞吐只受限于最慢的那个工位。步骤的顺序仍然来自Step，没有另外再定义一遍。
+//每个工位统计处理数量、忙碌时间（用来算利用率）和订单在队列中的等待时间。
+//shutdown()停止所有工位的线程，还没做完的订单以CancellationException结束，调用者不会永远等下去。
+//import java.util.concurrent.CompletableFuture;
+//import java.util.concurrent.CancellationException;
+//import java.util.concurrent.RejectedExecutionException;
+
+public class PizzaPipeline {
+    private final PizzaStore3 store;
+    private final Stage[] stages;
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private final long startedAt = System.nanoTime();
+    private volatile boolean shutdown;
+
+    //threadsPerStage[i]是第i个步骤（按Step的顺序）的工作线程数
+    public PizzaPipeline(PizzaStore3 store, int[] threadsPerStage, int queueCapacity) {
+        this.store = store;
+        PizzaStore3.Step[] steps = PizzaStore3.Step.values();
+        stages = new Stage[steps.length];
+        for (int i = steps.length - 1; i >= 0; i--) {
+            stages[i] = new Stage(steps[i], queueCapacity, i + 1 < steps.length ? stages[i + 1] : null);
+            for (int t = 0; t < threadsPerStage[i]; t++) {
+                Thread thread = new Thread(stages[i], "pizza-" + steps[i].name().toLowerCase() + "-" + t);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+            stages[i].threads = threadsPerStage[i];
+        }
+    }
+
+    //创建披萨仍由商店的工厂方法负责，之后进入流水线；第一个工位满时调用者会等待
+    public CompletableFuture<Pizza> orderPizza(String type) throws InterruptedException {
+        if (shutdown) {
+            throw new RejectedExecutionException("Pipeline is shut down");
+        }
+        Order order = new Order(store.createPizza(type));
+        stages[0].enqueue(order);
+        if (shutdown && stages[0].queue.remove(order)) { //与shutdown()同时发生，而且没有被它取走
+            order.future.cancel(false);
+        }
+        return order.future;
+    }
+
+    //停止所有工位的线程，并取消还在队列中的订单
+    public void shutdown() throws InterruptedException {
+        shutdown = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Stage stage : stages) {
+            List<Order> left = new ArrayList<Order>();
+            stage.queue.drainTo(left);
+            for (Order order : left) {
+                order.future.cancel(false);
+            }
+        }
+    }
+
+    //工位的利用率：忙碌时间 / (线程数 * 运行时间)
+    public double getUtilization(PizzaStore3.Step step) {
+        Stage stage = stages[step.ordinal()];
+        return (double) stage.busyNanos.sum() / (stage.threads * (double) (System.nanoTime() - startedAt));
+    }
+
+    public double getAverageQueueNanos(PizzaStore3.Step step) {
+        Stage stage = stages[step.ordinal()];
+        long processed = stage.processed.sum();
+        return processed == 0 ? 0 : (double) stage.queueNanos.sum() / processed;
+    }
+
+    public long getProcessedCount(PizzaStore3.Step step) {
+        return stages[step.ordinal()].processed.sum();
+    }
+
+    public int getQueueDepth(PizzaStore3.Step step) {
+        return stages[step.ordinal()].queue.size();
+    }
+
+    private static class Order {
+        final Pizza pizza;
+        final CompletableFuture<Pizza> future = new CompletableFuture<Pizza>();
+        long enqueuedAt;
+
+        Order(Pizza pizza) {
+            this.pizza = pizza;
+        }
+    }
+
+    private static class Stage implements Runnable {
+        final PizzaStore3.Step step;
+        final BlockingQueue<Order> queue;
+        final Stage next;
+        final LongAdder processed = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
+        final LongAdder queueNanos = new LongAdder();
+        int threads;
+
+        Stage(PizzaStore3.Step step, int queueCapacity, Stage next) {
+            this.step = step;
+            this.queue = new ArrayBlockingQueue<Order>(queueCapacity);
+            this.next = next;
+        }
+
+        void enqueue(Order order) throws InterruptedException {
+            order.enqueuedAt = System.nanoTime();
+            queue.put(order);
+        }
+
+        public void run() {
+            for (;;) {
+                Order order;
+                try {
+                    order = queue.take();
+                } catch (InterruptedException e) {
+                    return; //流水线关闭
+                }
+                long start = System.nanoTime();
+                queueNanos.add(start - order.enqueuedAt);
+                try {
+                    step.apply(order.pizza);
+                } catch (Throwable e) {
+                    //这个订单失败了，不再交给下一个工位；连Error也要接住，否则工位线程退出，后面的订单都不会完成
+                    order.future.completeExceptionally(e);
+                    continue;
+                } finally {
+                    busyNanos.add(System.nanoTime() - start);
+                    processed.increment();
+                }
+                if (next == null) {
+                    order.future.complete(order.pizza);
+                    continue;
+                }
+                try {
+                    next.enqueue(order);
+                } catch (InterruptedException e) {
+                    order.future.cancel(false); //关闭时正等着下一个工位的队列，订单已不在任何队列中
+                    return;
+                }
+            }
+        }
+    }
+}
+
+//延伸四，跨地区的批量下单
+//订单是成批到达的，而PizzaStore3.orderPizza(String type)一次只能下一个。
+//BulkOrderService接收一批(地区, 类型)的订单：先把订单按(地区, 类型)分组，每组只在该地区的RegistryPizzaFactory中查找一次类型的构造方法，再把各组放到fork/join线程池中并行制作（大组会继续二分），结果按输入的顺序返回。
+//组内每个订单只调用构造方法并按PizzaStore3.Step依次执行各步骤，不再经过orderPizza中的字符串比较；原料工厂来自IngredientFactories的共享实例，也不会每单重新创建。
+//import java.util.concurrent.ForkJoinPool;
+//import java.util.concurrent.RecursiveAction;
+
+public class BulkOrderService {
+    static final int SPLIT_THRESHOLD = 256;
+
+    private static final PizzaStore3.Step[] STEPS = PizzaStore3.Step.values(); //values()每次都会复制数组
+
+    private final Map<String, RegistryPizzaFactory> factories = new HashMap<String, RegistryPizzaFactory>();
+    private final ForkJoinPool pool;
+
+    public BulkOrderService(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    //用该地区共享的原料工厂登记标准菜单
+    public BulkOrderService addRegion(String region) {
+        final PizzaIngredientFactory ingredientFactory = IngredientFactories.forRegion(region);
+        return addRegion(region, new RegistryPizzaFactory()
+                .register("cheese", () -> new CheesePizza(ingredientFactory))
+                .register("clam", () -> new ClamPizza(ingredientFactory))
+                .freeze());
+    }
+
+    public BulkOrderService addRegion(String region, RegistryPizzaFactory factory) {
+        factories.put(region, factory);
+        return this;
+    }
+
+    //regions[i]和types[i]组成第i个订单，返回的数组与输入一一对应
+    public Pizza[] orderPizzas(String[] regions, String[] types) {
+        Map<String, Map<String, List<Integer>>> groups = new HashMap<String, Map<String, List<Integer>>>();
+        for (int i = 0; i < regions.length; i++) {
+            Map<String, List<Integer>> byType = groups.get(regions[i]);
+            if (byType == null) {
+                byType = new HashMap<String, List<Integer>>();
+                groups.put(regions[i], byType);
+            }
+            List<Integer> indexes = byType.get(types[i]);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                byType.put(types[i], indexes);
+            }
+            indexes.add(i);
+        }
+
+        Pizza[] results = new Pizza[regions.length];
+        List<GroupTask> tasks = new ArrayList<GroupTask>();
+        for (Map.Entry<String, Map<String, List<Integer>>> region : groups.entrySet()) {
+            RegistryPizzaFactory factory = factories.get(region.getKey()); //每个地区只查找一次
+            if (factory == null) {
+                throw new IllegalArgumentException("No store for region: " + region.getKey());
+            }
+            for (Map.Entry<String, List<Integer>> type : region.getValue().entrySet()) {
+                Supplier<? extends Pizza> creator = factory.creatorFor(type.getKey()); //每组只查找一次，未知类型在制作前就报错
+                List<Integer> indexes = type.getValue();
+                int[] positions = new int[indexes.size()];
+                for (int i = 0; i < positions.length; i++) {
+                    positions[i] = indexes.get(i);
+                }
+                tasks.add(new GroupTask(creator, positions, 0, positions.length, results));
+            }
+        }
+        pool.invoke(new RecursiveAction() {
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        return results;
+    }
+
+    private static class GroupTask extends RecursiveAction {
+        final Supplier<? extends Pizza> creator;
+        final int[] positions; //该组订单在输入中的位置
+        final int from;
+        final int to;
+        final Pizza[] results;
+
+        GroupTask(Supplier<? extends Pizza> creator, int[] positions, int from, int to, Pizza[] results) {
+            this.creator = creator;
+            this.positions = positions;
+            this.from = from;
+            this.to = to;
+            this.results = results;
+        }
+
+        protected void compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new GroupTask(creator, positions, from, mid, results),
+                        new GroupTask(creator, positions, mid, to, results));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                Pizza pizza = creator.get();
+                for (PizzaStore3.Step step : STEPS) { //与orderPizza相同的步骤和顺序
+                    step.apply(pizza);
+                }
+                results[positions[i]] = pizza;
+            }
+        }
+    }
+}
+
+//用法：
+//BulkOrderService service = new BulkOrderService(ForkJoinPool.commonPool()).addRegion("NY").addRegion("Chicago");
+//Pizza[] pizzas = service.orderPizzas(new String[] { "NY", "Chicago", "NY" }, new String[] { "cheese", "clam", "cheese" });
\ No newline at end of file
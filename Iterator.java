@@ -17,8 +17,8 @@ public class MenuItem {
     }
     public String getName() { return name; }
     public String getDescription() { return description; }
-    public String getPrice() { return price; }
-    public String isVegetarian() { return vegetarian; }
+    public double getPrice() { return price; }
+    public boolean isVegetarian() { return vegetarian; }
 }
 
 public class PancakeHouseMenu1 { //煎饼菜单
@@ -161,6 +161,11 @@ public class Waitress2 {
 //系统本身有迭代器相关接口和已实现的类可直接利用，同时本次抽象出菜单接口供招待员使用，解耦招待员和煎饼西餐两个具体菜单的关系。
 public interface Menu {
     public Iterator createIterator();
+
+    //供并行流使用（见后面的Waitress5），默认只能按迭代器逐个拆分，知道自己内部结构的菜单应当覆盖它
+    default Spliterator<MenuItem> spliterator() {
+        return Spliterators.spliteratorUnknownSize(createIterator(), Spliterator.ORDERED | Spliterator.NONNULL);
+    }
 }
 
 public class PancakeHouseMenu3 implements Menu { //煎饼菜单
@@ -179,6 +184,9 @@ public class PancakeHouseMenu3 implements Menu { //煎饼菜单
     public Iterator createIterator() {
         return menuItems.iterator(); //因ArrayList支持Iterator接口，故直接免去 PancakeHouseMenuIterator3 的实现。
     }
+    public Spliterator<MenuItem> spliterator() {
+        return menuItems.spliterator(); //ArrayList的拆分器本身就是SIZED | SUBSIZED，并且按下标对半拆分
+    }
 }
 
 public class DinerMenu3 implements Menu {
@@ -187,6 +195,16 @@ public class DinerMenu3 implements Menu {
     public Iterator createIterator() {
         return new DinerMenuIterator3(menuItems); //因数组list（MenuItems[]）不支持Iterator接口，故仍需实现 DinerMenuIterator3
     }
+
+    public Spliterator<MenuItem> spliterator() {
+        //只覆盖已使用的部分，数组尾部的null不计入大小。
+        //DinerMenuIterator3.remove()把后面的菜单项左移却不会减少numberOfItems，所以还要以第一个null为界，否则NONNULL就不成立了
+        int end = 0;
+        while (end < numberOfItems && menuItems[end] != null) {
+            end++;
+        }
+        return Spliterators.spliterator(menuItems, 0, end, Spliterator.ORDERED | Spliterator.NONNULL);
+    }
 }
 
 public class DinerMenuIterator3 implements Iterator {
@@ -227,6 +245,11 @@ public class CafeMenu implements Menu {
     public Iterator createIterator() {
         return MenuItems.values().iterator();
     }
+    public Spliterator<MenuItem> spliterator() {
+        //Hashtable的values()只能按迭代器分批拆分，这里先复制成数组快照，换来准确的大小和对半拆分
+        MenuItem[] snapshot = (MenuItem[]) menuItems.values().toArray(new MenuItem[0]);
+        return Spliterators.spliterator(snapshot, Spliterator.NONNULL | Spliterator.IMMUTABLE);
+    }
 }
 
 //再优化一下招待员，使他不用在每次增减菜单时都要改到内部的代码。这也是得益于Menu接口的诞生
@@ -247,5 +270,449 @@ public class Waitress4 {
     }
 }
 
+//延伸一，列式存储的菜单
+//每个MenuItem都是一个单独的堆对象，里面有name、description两个String，一个boolean和一个double，按素食或价格筛选一个很大的菜单时，要沿着指针逐个访问这些对象。
+//ColumnarMenu按列存储菜单项：价格是一个double[]，是否素食是一个BitSet，名称和描述做字典编码（相同的字符串只保存一份，列中只存int编号）。
+//它仍然实现Menu接口，createIterator()按需给出轻量的MenuItem视图；素食和价格区间的查询则直接在原始类型数组上循环。
+
+public class ColumnarMenu implements Menu {
+    private final List<String> dictionary = new ArrayList<String>();
+    private final Map<String, Integer> codes = new HashMap<String, Integer>();
+    private int[] names = new int[16];
+    private int[] descriptions = new int[16];
+    private double[] prices = new double[16];
+    private final BitSet vegetarian = new BitSet();
+    private int size;
+
+    public void addItem(String name, String description, boolean vegetarian, double price) {
+        if (size == prices.length) {
+            names = Arrays.copyOf(names, size * 2);
+            descriptions = Arrays.copyOf(descriptions, size * 2);
+            prices = Arrays.copyOf(prices, size * 2);
+        }
+        names[size] = encode(name);
+        descriptions[size] = encode(description);
+        prices[size] = price;
+        this.vegetarian.set(size, vegetarian);
+        size++;
+    }
+
+    public int size() { return size; }
+    public String getName(int row) { return dictionary.get(names[row]); }
+    public String getDescription(int row) { return dictionary.get(descriptions[row]); }
+    public double getPrice(int row) { return prices[row]; }
+    public boolean isVegetarian(int row) { return vegetarian.get(row); }
+
+    //素食菜单项所在的行（返回副本，调用者可以随意修改）
+    public BitSet vegetarianRows() {
+        return (BitSet) vegetarian.clone();
+    }
+
+    //价格在[min, max]区间内的行
+    public BitSet rowsInPriceRange(double min, double max) {
+        BitSet rows = new BitSet(size);
+        double[] prices = this.prices;
+        for (int i = 0; i < size; i++) {
+            if (prices[i] >= min && prices[i] <= max) {
+                rows.set(i);
+            }
+        }
+        return rows;
+    }
+
+    //素食菜单项的平均价格，只访问BitSet和价格数组
+    public double averageVegetarianPrice() {
+        double sum = 0;
+        int count = 0;
+        for (int i = vegetarian.nextSetBit(0); i >= 0 && i < size; i = vegetarian.nextSetBit(i + 1)) {
+            sum += prices[i];
+            count++;
+        }
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    public Iterator createIterator() {
+        return new Iterator() {
+            int row = 0;
+            public boolean hasNext() {
+                return row < size;
+            }
+            public Object next() {
+                if (row >= size) {
+                    throw new NoSuchElementException();
+                }
+                return new MenuItemView(ColumnarMenu.this, row++);
+            }
+        };
+    }
+
+    private int encode(String s) {
+        Integer code = codes.get(s);
+        if (code == null) {
+            code = dictionary.size();
+            dictionary.add(s);
+            codes.put(s, code);
+        }
+        return code;
+    }
+}
+
+//只保存菜单和行号的视图，字段在访问时才从列中读取
+public class MenuItemView extends MenuItem {
+    private final ColumnarMenu menu;
+    private final int row;
+
+    MenuItemView(ColumnarMenu menu, int row) {
+        super(null, null, false, 0);
+        this.menu = menu;
+        this.row = row;
+    }
+
+    public String getName() { return menu.getName(row); }
+    public String getDescription() { return menu.getDescription(row); }
+    public double getPrice() { return menu.getPrice(row); }
+    public boolean isVegetarian() { return menu.isVegetarian(row); }
+}
+
+//延伸二，可扩容的西餐菜单，删除时不再搬移元素
+//DinerMenu1最多只能放MAX_ITEMS = 6个菜单项，满了只打印一句提示；DinerMenuIterator3.remove()每删一项都要把后面的元素全部前移，边遍历边删除全部菜单项就是O(n²)。
+//GrowableDinerMenu的数组满了就按两倍扩容（均摊O(1)追加）；通过迭代器删除时只把该位置置为null（墓碑），等墓碑超过一半时，在下一次追加时再一次性压缩（也可以显式调用compact()），所以对100万项的“筛选并删除”仍是线性的。创建迭代器是只读操作，不压缩，否则会让其它正在使用的迭代器失效。
+//迭代器是快速失败的：迭代期间菜单被迭代器以外的方式修改（追加或压缩）时，抛出ConcurrentModificationException。
+
+public class GrowableDinerMenu implements Menu {
+    MenuItem[] menuItems = new MenuItem[8];
+    int size;       //已使用的位置数，包括墓碑
+    int tombstones;
+    int modCount;   //结构性修改的次数，用于快速失败
+
+    public void addItem(String name, String description, boolean vegetarian, double price) {
+        compactIfNeeded();
+        if (size == menuItems.length) {
+            menuItems = Arrays.copyOf(menuItems, size * 2);
+        }
+        menuItems[size++] = new MenuItem(name, description, vegetarian, price);
+        modCount++;
+    }
+
+    public int getItemCount() {
+        return size - tombstones;
+    }
+
+    public Iterator createIterator() {
+        return new GrowableDinerMenuIterator();
+    }
+
+    //立即清除所有墓碑；这是结构性修改，正在使用的迭代器会抛出ConcurrentModificationException
+    public void compact() {
+        if (tombstones > 0) {
+            compactNow();
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (tombstones == 0 || tombstones * 2 < size) {
+            return;
+        }
+        compactNow();
+    }
+
+    private void compactNow() {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (menuItems[i] != null) {
+                menuItems[n++] = menuItems[i];
+            }
+        }
+        Arrays.fill(menuItems, n, size, null);
+        size = n;
+        tombstones = 0;
+        modCount++;
+    }
+
+    private class GrowableDinerMenuIterator implements Iterator {
+        int position;          //下一个要检查的位置
+        int lastReturned = -1;
+        int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            checkForComodification();
+            while (position < size && menuItems[position] == null) {
+                position++; //跳过墓碑
+            }
+            return position < size;
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            lastReturned = position;
+            return menuItems[position++];
+        }
+
+        public void remove() {
+            if (lastReturned < 0) {
+                throw new IllegalStateException("You can't remove an item until you've done at least one next()");
+            }
+            checkForComodification();
+            menuItems[lastReturned] = null; //O(1)，不搬移后面的元素
+            tombstones++;
+            lastReturned = -1;
+        }
+
+        private void checkForComodification() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+}
+
+//延伸三，用并行流查询所有菜单
+//Menu只提供createIterator()，Waitress4.printMenu只能在一个线程上逐项遍历菜单。
+//上面为Menu加上了spliterator()：DinerMenu3（数组）、PancakeHouseMenu3（ArrayList）和CafeMenu（Hashtable的快照）都给出带SIZED | SUBSIZED特征、可以对半拆分的拆分器。
+//Waitress5把所有菜单的拆分器拼成一个并行流，素食筛选、价格统计等查询就能用上所有的CPU核心。拼接时按二分的方式组合，避免菜单很多时Stream.concat嵌套过深。
+//import java.util.stream.*;
+
+public class Waitress5 {
+    List<Menu> menus;
+    public Waitress5(List<Menu> menus) {
+        this.menus = menus;
+    }
+
+    public Stream<MenuItem> allItems() {
+        return concat(0, menus.size()).parallel();
+    }
+
+    public List<MenuItem> getVegetarianItems() {
+        return allItems().filter(MenuItem::isVegetarian).collect(Collectors.toList());
+    }
+
+    public DoubleSummaryStatistics getPriceStatistics() {
+        return allItems().mapToDouble(MenuItem::getPrice).summaryStatistics();
+    }
+
+    public double getAverageVegetarianPrice() {
+        return allItems().filter(MenuItem::isVegetarian).mapToDouble(MenuItem::getPrice).average().orElse(Double.NaN);
+    }
+
+    private Stream<MenuItem> concat(int from, int to) {
+        if (to - from == 0) {
+            return Stream.empty();
+        }
+        if (to - from == 1) {
+            return StreamSupport.stream(menus.get(from).spliterator(), true);
+        }
+        int mid = (from + to) >>> 1;
+        return Stream.concat(concat(from, mid), concat(mid, to));
+    }
+}
+
+//延伸四，并发的咖啡菜单
+//CafeMenu用java.util.Hashtable保存菜单项，每次put都要获取同一把对象锁（遍历本身不加锁），遍历时有其它线程做结构性修改还会抛出ConcurrentModificationException。
+//ConcurrentCafeMenu改用ConcurrentHashMap：读操作不加锁，写操作只锁住所在的哈希桶，迭代器是弱一致的（不会抛出异常，能反映创建之后的部分修改），所以招待员打印菜单时厨房可以同时调整价格。
+//调价时用一个新的MenuItem原子地替换旧的，而不是修改共享对象的字段，读者看到的每个菜单项都是完整的。
+//import java.util.concurrent.ConcurrentHashMap;
+
+public class ConcurrentCafeMenu implements Menu {
+    ConcurrentHashMap<String, MenuItem> menuItems = new ConcurrentHashMap<String, MenuItem>();
+
+    public void addItem(String name, String description, boolean vegetarian, double price) {
+        MenuItem menuItem = new MenuItem(name, description, vegetarian, price);
+        menuItems.put(menuItem.getName(), menuItem);
+    }
+
+    public boolean updatePrice(String name, final double price) {
+        return menuItems.computeIfPresent(name, (key, old) ->
+                new MenuItem(old.getName(), old.getDescription(), old.isVegetarian(), price)) != null;
+    }
+
+    public void removeItem(String name) {
+        menuItems.remove(name);
+    }
+
+    public Iterator createIterator() {
+        return menuItems.values().iterator(); //弱一致的迭代器
+    }
+
+    public Spliterator<MenuItem> spliterator() {
+        //按哈希表的桶区间对半拆分，估计大小来自map的计数；不覆盖的话Waitress5只能退回到按迭代器分批拆分
+        return menuItems.values().spliterator();
+    }
+}
+
+//用JMH对比Hashtable版本与ConcurrentHashMap版本：16个线程中12个遍历菜单（打印），4个调价
+//同名覆盖的调价不是结构性修改，Hashtable版本通常不会因此抛出ConcurrentModificationException；万一抛出也只计数后继续。
+//注意Hashtable的values()迭代器逐项遍历时并不加锁，争抢对象锁的只有4个调价线程，所以两者的差别主要体现在调价（写）的吞吐上，而不是遍历
+//import org.openjdk.jmh.annotations.*;
+//import org.openjdk.jmh.infra.Blackhole;
+
+@org.openjdk.jmh.annotations.State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+public class CafeMenuContentionBenchmark {
+    static final int ITEMS = 1000;
+
+    @Param({"Hashtable", "ConcurrentHashMap"})
+    String implementation;
+
+    Menu menu;
+    CafeMenu cafeMenu;
+    ConcurrentCafeMenu concurrentCafeMenu;
+
+    //抛出ConcurrentModificationException的次数作为辅助计数器随结果一起报告（每个线程一份，由JMH汇总）
+    @org.openjdk.jmh.annotations.State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long concurrentModifications;
+    }
+
+    @Setup
+    public void setUp() {
+        cafeMenu = new CafeMenu();
+        concurrentCafeMenu = new ConcurrentCafeMenu();
+        for (int i = 0; i < ITEMS; i++) {
+            cafeMenu.addItem("item-" + i, "description " + i, i % 2 == 0, i);
+            concurrentCafeMenu.addItem("item-" + i, "description " + i, i % 2 == 0, i);
+        }
+        menu = implementation.equals("Hashtable") ? cafeMenu : concurrentCafeMenu;
+    }
+
+    @Benchmark
+    @Group("printWhileUpdating")
+    @GroupThreads(12)
+    public void print(Blackhole blackhole, Counters counters) {
+        try {
+            Iterator iterator = menu.createIterator();
+            while (iterator.hasNext()) {
+                blackhole.consume(iterator.next());
+            }
+        } catch (ConcurrentModificationException e) {
+            counters.concurrentModifications++;
+        }
+    }
+
+    @Benchmark
+    @Group("printWhileUpdating")
+    @GroupThreads(4)
+    public void updatePrice() {
+        int i = ThreadLocalRandom.current().nextInt(ITEMS);
+        if (implementation.equals("Hashtable")) {
+            cafeMenu.addItem("item-" + i, "description " + i, i % 2 == 0, i + 0.5); //同名覆盖即为调价
+        } else {
+            concurrentCafeMenu.updatePrice("item-" + i, i + 0.5);
+        }
+    }
+}
+
+//延伸五，按价格或名称有序地合并多个菜单
+//Waitress4依次遍历每个菜单的迭代器，想得到一份按价格排序的总菜单，只能把所有菜单项复制到一个列表里再排序。
+//SortedMenuView为单个菜单建立一次排好序的菜单项数组快照，它本身也是一个Menu，createIterator()按顺序给出菜单项。排序视图应当建好后反复使用，每次查询都重建就又回到了全量复制和排序。
+//MergingIterator把N个各自有序的迭代器放进一个小顶堆，每次取出堆顶后再从同一个来源补一个进去：堆是一次性建好的（O(N)），取前K项的代价是O(N + K log N)，不需要把全部菜单项物化出来。
+
+public class SortedMenuView implements Menu {
+    private final MenuItem[] items; //按comparator排好序
+
+    public SortedMenuView(Menu menu, Comparator<MenuItem> comparator) {
+        List<MenuItem> list = new ArrayList<MenuItem>();
+        Iterator iterator = menu.createIterator();
+        while (iterator.hasNext()) {
+            list.add((MenuItem) iterator.next());
+        }
+        items = list.toArray(new MenuItem[list.size()]);
+        Arrays.sort(items, comparator); //直接排序引用数组本身，不需要另外的下标数组，也不会为每一项装箱
+    }
+
+    public Iterator createIterator() {
+        return new Iterator() {
+            int position = 0;
+            public boolean hasNext() {
+                return position < items.length;
+            }
+            public Object next() {
+                if (position >= items.length) {
+                    throw new NoSuchElementException();
+                }
+                return items[position++];
+            }
+        };
+    }
+}
+
+public class MergingIterator implements Iterator {
+    private final PriorityQueue<Head> heap;
+
+    //每个来源都必须已经按comparator排好序
+    public MergingIterator(List<Iterator> sources, Comparator<MenuItem> comparator) {
+        List<Head> heads = new ArrayList<Head>(sources.size());
+        for (Iterator source : sources) {
+            if (source.hasNext()) {
+                heads.add(new Head((MenuItem) source.next(), source, comparator));
+            }
+        }
+        //用整个集合构造时PriorityQueue一次性建堆，是O(N)；逐个add则是O(N log N)。这个构造方法只认自然顺序，所以Head实现了Comparable
+        heap = new PriorityQueue<Head>(heads);
+    }
+
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    public Object next() {
+        Head head = heap.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        MenuItem item = head.item;
+        if (head.source.hasNext()) {
+            head.item = (MenuItem) head.source.next(); //复用堆节点，只从同一个来源补一项
+            heap.add(head);
+        }
+        return item;
+    }
+
+    private static class Head implements Comparable<Head> {
+        MenuItem item;
+        final Iterator source;
+        final Comparator<MenuItem> comparator;
+
+        Head(MenuItem item, Iterator source, Comparator<MenuItem> comparator) {
+            this.item = item;
+            this.source = source;
+            this.comparator = comparator;
+        }
+
+        public int compareTo(Head other) {
+            return comparator.compare(item, other.item);
+        }
+    }
+}
+
+//招待员按价格打印所有菜单中最便宜的K项
+//排序视图在构造时建好一次，之后每次打印只合并，取前K项为O(N + K log N)；菜单有变动时应重新创建招待员
+public class Waitress6 {
+    static final Comparator<MenuItem> BY_PRICE = Comparator.comparingDouble(MenuItem::getPrice);
+
+    List<SortedMenuView> views = new ArrayList<SortedMenuView>();
+    public Waitress6(List<Menu> menus) {
+        for (Menu menu : menus) {
+            views.add(new SortedMenuView(menu, BY_PRICE));
+        }
+    }
+
+    public void printCheapest(int k) {
+        List<Iterator> sources = new ArrayList<Iterator>();
+        for (SortedMenuView view : views) {
+            sources.add(view.createIterator());
+        }
+        Iterator iterator = new MergingIterator(sources, BY_PRICE);
+        for (int i = 0; i < k && iterator.hasNext(); i++) {
+            MenuItem menuItem = (MenuItem) iterator.next();
+            System.out.print(menuItem.getName()+", ");
+            System.out.println(menuItem.getPrice());
+        }
+    }
+}
+
 //总结，迭代器模式提供一种方法顺序访问一个聚合对象中的各个元素，而又不暴露其内部的表示。把游走的任务放在迭代器上，而不是聚合，简化了聚合的接口和实现，让责任各得其所。
 //延伸，类的每个责任都有改变的潜在区域，超过一个责任，意味着超过一个改变的区域，应尽量让每个类保存单一责任，即一个类应该只有一个引起变化的原因。
\ No newline at end of file
@@ -134,4 +134,1397 @@ public class Displayer2 implements Observer, DisplayElement {
 
 //可见系统内置的观察方式，已经帮我们定义了注册观察者、通知观察者及其触发的更新方法。只是特别需要注意setChanged()这个方法需要在状态改变后先调用，后再调用notifyObservers()。
 
+//方案四，并发安全的观察者注册表（写时复制）
+//方案二中的ArrayList在通知的过程中若有其它线程注册或移除观察者，就可能漏通知、重复通知甚至抛出IndexOutOfBoundsException。
+//这里把观察者保存在一个不可变的数组快照中：通知时只读取当前快照遍历，无需加锁；注册和移除则复制出新数组，再用CAS原子地替换快照。
+//import java.util.concurrent.atomic.AtomicReference;
+
+public class ConcurrentWeatherData implements Subject {
+    private static final Observer[] EMPTY = new Observer[0];
+    private final AtomicReference<Observer[]> observers = new AtomicReference<Observer[]>(EMPTY);
+    private volatile float temperature;
+    private volatile float pressure;
+
+    public ConcurrentWeatherData() { }
+
+    public void registerObserver(Observer o) {
+        for (;;) {
+            Observer[] current = observers.get();
+            Observer[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = o;
+            if (observers.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    //一次注册一批观察者，只复制一次数组；逐个注册n个观察者要复制n次，总代价是O(n²)
+    public void registerObservers(Observer[] batch) {
+        for (;;) {
+            Observer[] current = observers.get();
+            Observer[] next = Arrays.copyOf(current, current.length + batch.length);
+            System.arraycopy(batch, 0, next, current.length, batch.length);
+            if (observers.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    public void removeObserver(Observer o) {
+        for (;;) {
+            Observer[] current = observers.get();
+            int i = indexOf(current, o);
+            if (i < 0) {
+                return;
+            }
+            Observer[] next = current.length == 1 ? EMPTY : new Observer[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            if (observers.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    public void notifyObservers() {
+        Observer[] snapshot = observers.get(); //快照一旦发布就不会再被修改，遍历期间的注册/移除只影响下一次通知
+        float temperature = this.temperature;
+        float pressure = this.pressure;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i].update(temperature, pressure);
+        }
+    }
+
+    public void measurementsChanged() {
+        notifyObservers();
+    }
+
+    public void setMeasurements(float temperature, float pressure) {
+        this.temperature = temperature;
+        this.pressure = pressure;
+        measurementsChanged();
+    }
+
+    private static int indexOf(Observer[] array, Observer o) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == o) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
+
+//写时复制适合“通知远多于注册”的场景：注册/移除的代价是O(n)的数组复制，但通知路径上没有锁，也不会分配对象。
+
+//简单的吞吐测试：主线程不停地通知，另一个线程不停地注册和移除观察者，通知的吞吐应与无并发修改时基本持平
+public class ConcurrentWeatherDataBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        final ConcurrentWeatherData weatherData = new ConcurrentWeatherData();
+        for (int i = 0; i < 100; i++) {
+            new Displayer1(weatherData); //Displayer1的构造函数会自己注册
+        }
+        System.out.println("quiet:   " + measure(weatherData) + " notifies/s");
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread churn = new Thread(new Runnable() {
+            public void run() {
+                Observer o = new Displayer1(weatherData);
+                while (running.get()) {
+                    weatherData.removeObserver(o);
+                    weatherData.registerObserver(o);
+                }
+            }
+        });
+        churn.start();
+        System.out.println("churning: " + measure(weatherData) + " notifies/s");
+        running.set(false);
+        churn.join();
+    }
+
+    private static long measure(ConcurrentWeatherData weatherData) {
+        long count = 0;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+        while (System.nanoTime() < end) {
+            weatherData.setMeasurements(count, count);
+            count++;
+        }
+        return count / 3;
+    }
+}
+
+//方案五，异步分发（环形缓冲区）
+//前面的方案都在生产者（气象站）线程上直接调用每个观察者的update，某一个display()慢了，整个数据源都会被拖住。
+//这里把测量值写入预先分配好的环形缓冲区（两个float数组作为槽位，不会为每次更新分配对象），由一个或多个消费者线程批量取出后再通知观察者。
+//每个观察者在注册时就固定分配给一个消费者线程（轮流分配），每个消费者只遍历自己的观察者数组，并各自维护已消费到的序号；生产者只在缓冲区写满时才等待最慢的消费者。
+//分配关系不会随其它观察者的注册/移除而改变，所以同一个观察者总是由同一个线程按序号顺序通知，不会漏掉、重复或乱序。
+//import java.util.concurrent.atomic.AtomicInteger;
+//import java.util.concurrent.atomic.AtomicLong;
+//import java.util.concurrent.atomic.LongAdder;
+//import java.util.concurrent.locks.LockSupport;
+
+public class AsyncWeatherData implements Subject {
+    private final float[] temperatures;
+    private final float[] pressures;
+    private final int mask;
+    private final AtomicLong published = new AtomicLong(-1); //最后一个已写入的序号
+    private final Consumer[] consumers;
+    private final AtomicInteger nextConsumer = new AtomicInteger();
+    private final LongAdder failures = new LongAdder(); //观察者update抛出异常的次数
+    private volatile boolean running = true;
+
+    public AsyncWeatherData(int bufferSize, int consumerCount) {
+        if (Integer.bitCount(bufferSize) != 1) {
+            throw new IllegalArgumentException("bufferSize must be a power of 2");
+        }
+        temperatures = new float[bufferSize];
+        pressures = new float[bufferSize];
+        mask = bufferSize - 1;
+        consumers = new Consumer[consumerCount];
+        for (int i = 0; i < consumerCount; i++) {
+            consumers[i] = new Consumer();
+            Thread thread = new Thread(consumers[i], "weather-dispatch-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void registerObserver(Observer o) {
+        Consumer consumer = consumers[Math.floorMod(nextConsumer.getAndIncrement(), consumers.length)];
+        for (;;) {
+            Observer[] current = consumer.observers.get();
+            Observer[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = o;
+            if (consumer.observers.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    //一次注册一批观察者：轮流分给各个消费者，每个消费者的数组只复制一次
+    public void registerObservers(Observer[] batch) {
+        int start = nextConsumer.getAndAdd(batch.length);
+        for (int c = 0; c < consumers.length; c++) {
+            List<Observer> assigned = new ArrayList<Observer>();
+            for (int i = 0; i < batch.length; i++) {
+                if (Math.floorMod(start + i, consumers.length) == c) {
+                    assigned.add(batch[i]);
+                }
+            }
+            AtomicReference<Observer[]> observers = consumers[c].observers;
+            for (;;) {
+                Observer[] current = observers.get();
+                Observer[] next = Arrays.copyOf(current, current.length + assigned.size());
+                for (int i = 0; i < assigned.size(); i++) {
+                    next[current.length + i] = assigned.get(i);
+                }
+                if (observers.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public void removeObserver(Observer o) {
+        for (int c = 0; c < consumers.length; c++) {
+            AtomicReference<Observer[]> observers = consumers[c].observers;
+            for (;;) {
+                Observer[] current = observers.get();
+                List<Observer> next = new ArrayList<Observer>(Arrays.asList(current));
+                if (!next.remove(o)) {
+                    break; //不在这个消费者上
+                }
+                if (observers.compareAndSet(current, next.toArray(new Observer[0]))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public void notifyObservers() {
+        //异步模式下，通知由消费者线程完成，这里什么都不用做
+    }
+
+    public void measurementsChanged() {
+        notifyObservers();
+    }
+
+    //只允许一个生产者线程调用（气象站的数据源就是单一的）
+    public void setMeasurements(float temperature, float pressure) {
+        long next = published.get() + 1;
+        long wrapPoint = next - temperatures.length;
+        while (wrapPoint > minConsumed()) { //缓冲区满了，等待最慢的消费者腾出槽位
+            if (!running) {
+                throw new IllegalStateException("AsyncWeatherData is shut down"); //消费者已经停了，槽位不会再腾出来
+            }
+            LockSupport.parkNanos(1L);
+        }
+        int slot = (int) next & mask;
+        temperatures[slot] = temperature;
+        pressures[slot] = pressure;
+        published.lazySet(next); //发布序号，保证槽位的写入对消费者可见
+        measurementsChanged();
+    }
+
+    public void shutdown() {
+        running = false;
+    }
+
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    private long minConsumed() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < consumers.length; i++) {
+            min = Math.min(min, consumers[i].consumed.get());
+        }
+        return min;
+    }
+
+    private class Consumer implements Runnable {
+        final AtomicLong consumed = new AtomicLong(-1);
+        final AtomicReference<Observer[]> observers = new AtomicReference<Observer[]>(new Observer[0]); //只由这个消费者通知的观察者
+
+        public void run() {
+            while (running) {
+                long from = consumed.get() + 1;
+                long to = published.get();
+                if (from > to) {
+                    LockSupport.parkNanos(1000L);
+                    continue;
+                }
+                Observer[] snapshot = observers.get();
+                for (long seq = from; seq <= to; seq++) { //一次取出所有已发布的测量值，批量通知
+                    int slot = (int) seq & mask;
+                    float temperature = temperatures[slot];
+                    float pressure = pressures[slot];
+                    for (int i = 0; i < snapshot.length; i++) {
+                        try {
+                            snapshot[i].update(temperature, pressure);
+                        } catch (RuntimeException e) {
+                            failures.increment(); //一个出错的观察者不能让消费者线程退出，否则consumed不再前进，生产者会永远等下去
+                        }
+                    }
+                }
+                consumed.lazySet(to);
+            }
+        }
+    }
+}
+
+//这样生产者的延迟就只取决于写入一个槽位的开销（缓冲区满时除外），慢的观察者只会拖慢负责它的那个消费者线程。
+
+//方案六，合并（只保留最新值）的观察者适配器
+//数据源每秒推送成千上万次测量值时，Displayer1这类显示装置其实只需要最新的读数。
+//ConflatingObserver包装一个真正的观察者：每个观察者只有一个待发送的槽位，新值直接覆盖旧值（被覆盖的计为丢弃），等观察者空闲时只把最新值交给它。
+//温度和气压两个float被打包进一个long中，这样槽位的读写都是一次原子操作，也不需要为每次更新分配对象。
+//import java.util.concurrent.Executor;
+//import java.util.concurrent.atomic.AtomicBoolean;
+//import java.util.concurrent.atomic.LongAdder;
+
+public class ConflatingObserver implements Observer, Runnable {
+    //一个非规范的NaN组合，floatToIntBits会把所有NaN规范化，所以真实的测量值不会与它冲突
+    private static final long EMPTY = 0x7fc000017fc00001L;
+
+    private final Observer delegate;
+    private final Executor executor;
+    private final AtomicLong pending = new AtomicLong(EMPTY);
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+
+    public ConflatingObserver(Observer delegate, Executor executor) {
+        this.delegate = delegate;
+        this.executor = executor;
+    }
+
+    public void update(float temp, float pressure) {
+        received.increment();
+        long packed = ((long) Float.floatToIntBits(temp) << 32) | (Float.floatToIntBits(pressure) & 0xffffffffL);
+        if (pending.getAndSet(packed) != EMPTY) {
+            dropped.increment(); //上一个值还没来得及发送就被覆盖了
+        }
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
+    }
+
+    //在executor的线程上执行，同一时刻最多只有一个在运行，所以被包装的观察者不需要考虑并发
+    public void run() {
+        for (;;) {
+            long packed;
+            while ((packed = pending.getAndSet(EMPTY)) != EMPTY) {
+                delegate.update(Float.intBitsToFloat((int) (packed >>> 32)), Float.intBitsToFloat((int) packed));
+                delivered.increment();
+            }
+            scheduled.set(false);
+            //释放调度标记后再检查一次，避免与刚刚写入的update错过
+            if (pending.get() == EMPTY || !scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    public long getReceivedCount() { return received.sum(); }
+    public long getDroppedCount() { return dropped.sum(); }
+    public long getDeliveredCount() { return delivered.sum(); }
+}
+
+//使用时只需把观察者包一层再注册，例如 weatherData.registerObserver(new ConflatingObserver(displayer, executor))，数据源不会再被慢的显示装置拖住，也不会积压无界的待处理更新。
+
+//方案七，带过滤条件的订阅
+//Subject.registerObserver(Observer)没有过滤条件，每个观察者都会收到每一次update，哪怕它只关心温度变化超过某个幅度或越过某个界限，所以每次更新的代价都是O(所有观察者)。
+//这里在注册时就带上订阅条件，并由主题按条件建立索引，让每次测量只触达真正匹配的观察者：
+//1）阈值订阅：温度越过某个阈值时通知。所有阈值保存在有序数组中，每次更新按新旧温度二分查找，只遍历被越过的那一段，O(log n + k)；
+//2）变化幅度订阅：温度相对上次通知给该观察者的值变化超过delta时通知。每个订阅都有一个[上次值-delta, 上次值+delta]的区间，用两个堆分别按上下界排序，每次更新只弹出越界的订阅，O(k log n)；
+//3）任意条件订阅：无法建立索引，只能逐个判断，但至少不会打扰其它订阅者。
+//import java.util.PriorityQueue;
+
+public interface MeasurementFilter {
+    public boolean accept(float temp, float pressure);
+}
+
+public class FilteredWeatherData implements Subject {
+    private final List<Observer> observers = new ArrayList<Observer>();
+    private final List<Observer> filteredObservers = new ArrayList<Observer>();
+    private final List<MeasurementFilter> filters = new ArrayList<MeasurementFilter>();
+    //阈值表：按阈值升序排列的两个平行数组
+    private float[] thresholds = new float[0];
+    private Observer[] thresholdObservers = new Observer[0];
+    //变化幅度订阅：upperBounds按上界升序，lowerBounds按下界降序，过期的边界在弹出时丢弃
+    private final Map<Observer, DeltaSubscription> deltaSubscriptions = new HashMap<Observer, DeltaSubscription>();
+    private final PriorityQueue<Bound> upperBounds = new PriorityQueue<Bound>();
+    private final PriorityQueue<Bound> lowerBounds = new PriorityQueue<Bound>(11, Collections.reverseOrder());
+    private float temperature;
+    private float pressure;
+    private boolean measured; //收到第一个测量值之前没有“上一个温度”，阈值和变化幅度都无从比较
+
+    public synchronized void registerObserver(Observer o) {
+        observers.add(o);
+    }
+
+    public synchronized void registerObserver(Observer o, MeasurementFilter filter) {
+        filteredObservers.add(o);
+        filters.add(filter);
+    }
+
+    public synchronized void registerThreshold(Observer o, float threshold) {
+        int i = Arrays.binarySearch(thresholds, threshold);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        float[] newThresholds = new float[thresholds.length + 1];
+        Observer[] newObservers = new Observer[thresholds.length + 1];
+        System.arraycopy(thresholds, 0, newThresholds, 0, i);
+        System.arraycopy(thresholdObservers, 0, newObservers, 0, i);
+        newThresholds[i] = threshold;
+        newObservers[i] = o;
+        System.arraycopy(thresholds, i, newThresholds, i + 1, thresholds.length - i);
+        System.arraycopy(thresholdObservers, i, newObservers, i + 1, thresholds.length - i);
+        thresholds = newThresholds;
+        thresholdObservers = newObservers;
+    }
+
+    public synchronized void registerDelta(Observer o, float delta) {
+        if (!(delta >= 0)) { //也挡住NaN；负的delta会让新的上界低于当前温度，fireBounds将永远弹不完
+            throw new IllegalArgumentException("delta must be a non-negative number: " + delta);
+        }
+        DeltaSubscription subscription = new DeltaSubscription(o, delta);
+        DeltaSubscription old = deltaSubscriptions.put(o, subscription);
+        if (old != null) {
+            old.generation = -1; //与removeObserver一样作废旧订阅，否则它的边界仍然有效，观察者会被通知两次
+        }
+        if (measured) {
+            pushBounds(subscription, temperature);
+        } //否则等第一个测量值到来时再以它为基准
+        compactBoundsIfNeeded();
+    }
+
+    public synchronized void removeObserver(Observer o) {
+        observers.remove(o);
+        int i = filteredObservers.indexOf(o);
+        if (i >= 0) {
+            filteredObservers.remove(i);
+            filters.remove(i);
+        }
+        int n = 0;
+        for (int j = 0; j < thresholds.length; j++) {
+            if (thresholdObservers[j] != o) {
+                thresholds[n] = thresholds[j];
+                thresholdObservers[n++] = thresholdObservers[j];
+            }
+        }
+        thresholds = Arrays.copyOf(thresholds, n);
+        thresholdObservers = Arrays.copyOf(thresholdObservers, n);
+        DeltaSubscription subscription = deltaSubscriptions.remove(o);
+        if (subscription != null) {
+            subscription.generation = -1; //堆中剩下的边界都会在弹出或压缩时被丢弃
+            compactBoundsIfNeeded();
+        }
+    }
+
+    public void notifyObservers() {
+        notifyObservers(temperature, temperature, pressure);
+    }
+
+    public synchronized void setMeasurements(float temperature, float pressure) {
+        if (!measured) {
+            //第一个测量值只作为阈值和变化幅度的基准，不算越过任何阈值
+            measured = true;
+            for (DeltaSubscription subscription : deltaSubscriptions.values()) {
+                pushBounds(subscription, temperature);
+            }
+            this.temperature = temperature;
+            this.pressure = pressure;
+            notifyObservers(temperature, temperature, pressure);
+            return;
+        }
+        float previous = this.temperature;
+        this.temperature = temperature;
+        this.pressure = pressure;
+        notifyObservers(previous, temperature, pressure);
+    }
+
+    private synchronized void notifyObservers(float previous, float temp, float pressure) {
+        for (int i = 0; i < observers.size(); i++) {
+            observers.get(i).update(temp, pressure);
+        }
+        for (int i = 0; i < filters.size(); i++) {
+            if (filters.get(i).accept(temp, pressure)) {
+                filteredObservers.get(i).update(temp, pressure);
+            }
+        }
+        //被越过的阈值落在(min, max]区间内
+        float min = Math.min(previous, temp);
+        float max = Math.max(previous, temp);
+        for (int i = firstAbove(min); i < thresholds.length && thresholds[i] <= max; i++) {
+            thresholdObservers[i].update(temp, pressure);
+        }
+        fireBounds(upperBounds, temp, pressure, true);
+        fireBounds(lowerBounds, temp, pressure, false);
+        compactBoundsIfNeeded();
+    }
+
+    private void fireBounds(PriorityQueue<Bound> bounds, float temp, float pressure, boolean upper) {
+        Bound bound;
+        while ((bound = bounds.peek()) != null && (upper ? bound.value < temp : bound.value > temp)) {
+            bounds.poll();
+            DeltaSubscription subscription = bound.subscription;
+            if (bound.generation == subscription.generation) {
+                pushBounds(subscription, temp);
+                subscription.observer.update(temp, pressure);
+            }
+        }
+    }
+
+    private void pushBounds(DeltaSubscription subscription, float temp) {
+        int generation = ++subscription.generation;
+        upperBounds.add(new Bound(subscription, generation, temp + subscription.delta));
+        lowerBounds.add(new Bound(subscription, generation, temp - subscription.delta));
+    }
+
+    //过期边界超过有效边界数量时重建两个堆，避免温度单向变化时另一侧的过期边界无限堆积
+    private void compactBoundsIfNeeded() {
+        if (upperBounds.size() + lowerBounds.size() <= 4 * (deltaSubscriptions.size() + 1)) {
+            return;
+        }
+        upperBounds.removeIf(b -> b.generation != b.subscription.generation);
+        lowerBounds.removeIf(b -> b.generation != b.subscription.generation);
+    }
+
+    private int firstAbove(float value) {
+        int low = 0;
+        int high = thresholds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (thresholds[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static class DeltaSubscription {
+        final Observer observer;
+        final float delta;
+        int generation;
+
+        DeltaSubscription(Observer observer, float delta) {
+            this.observer = observer;
+            this.delta = delta;
+        }
+    }
+
+    private static class Bound implements Comparable<Bound> {
+        final DeltaSubscription subscription;
+        final int generation;
+        final float value;
+
+        Bound(DeltaSubscription subscription, int generation, float value) {
+            this.subscription = subscription;
+            this.generation = generation;
+            this.value = value;
+        }
+
+        public int compareTo(Bound other) {
+            return Float.compare(value, other.value);
+        }
+    }
+}
+
+//方案八，测量值的历史记录（列式存储）
+//WeatherData2和WeatherData3都不保存历史，每个想显示最高/最低/平均值的显示装置都得自己缓存一份装箱后的读数。
+//MeasurementHistory本身也是一个观察者，注册到任意主题上即可记录每次测量：时间戳、温度、气压分别按列保存在分块的原始类型数组中，只追加、不装箱。
+//窗口统计（最近N次或最近T毫秒）在追加时增量维护：总和直接加减，最值用单调队列维护，所以查询都是O(1)且不分配对象。
+//时间取自构造时注入的时钟（默认System.currentTimeMillis），update()记录的时间戳和按时间淘汰窗口都用它；用append()写入回放或事件时间的数据时，应注入同一时间轴上的时钟。
+//历史不会无限增长：整块的测量值只要比保留时长更旧、也不在任何窗口内，就在开新块时释放，所以内存上限由保留时长和最长的窗口决定。
+//import java.util.function.LongSupplier;
+
+public class MeasurementHistory implements Observer {
+    static final int TEMPERATURE = 0;
+    static final int PRESSURE = 1;
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final LongSupplier clock;
+    private final long retentionMillis; //窗口之外额外保留的历史时长
+    private long[][] timestamps = new long[16][]; //下标0是序号released所在的块
+    private float[][][] columns = { new float[16][], new float[16][] };
+    private long released; //序号小于它的测量值已被释放，总是CHUNK_SIZE的整数倍
+    private long size;
+    private WindowStats[] windows = new WindowStats[0];
+
+    //只保留窗口统计需要的历史
+    public MeasurementHistory() {
+        this(System::currentTimeMillis, 0);
+    }
+
+    public MeasurementHistory(LongSupplier clock, long retentionMillis) {
+        this.clock = clock;
+        this.retentionMillis = retentionMillis;
+    }
+
+    public synchronized void update(float temp, float pressure) {
+        append(clock.getAsLong(), temp, pressure);
+    }
+
+    public synchronized void append(long timestamp, float temp, float pressure) {
+        int offset = (int) size & CHUNK_MASK;
+        if (offset == 0) {
+            releaseChunks(timestamp);
+            addChunk();
+        }
+        int chunk = (int) ((size - released) >>> CHUNK_BITS);
+        timestamps[chunk][offset] = timestamp;
+        columns[TEMPERATURE][chunk][offset] = temp;
+        columns[PRESSURE][chunk][offset] = pressure;
+        long seq = size++;
+        for (int i = 0; i < windows.length; i++) {
+            windows[i].onAppend(seq);
+        }
+    }
+
+    //最近count次测量的统计
+    public synchronized WindowStats lastCount(int column, int count) {
+        return addWindow(new WindowStats(this, column, count, Long.MAX_VALUE));
+    }
+
+    //最近millis毫秒内测量的统计
+    public synchronized WindowStats lastMillis(int column, long millis) {
+        return addWindow(new WindowStats(this, column, Integer.MAX_VALUE, millis));
+    }
+
+    public synchronized long size() { return size; }
+    public synchronized long getFirstRetained() { return released; } //还能读取的最早序号
+    public synchronized long getTimestamp(long seq) { return timestamps[chunkOf(seq)][(int) seq & CHUNK_MASK]; }
+    public synchronized float get(int column, long seq) { return columns[column][chunkOf(seq)][(int) seq & CHUNK_MASK]; }
+
+    long now() {
+        return clock.getAsLong();
+    }
+
+    private int chunkOf(long seq) {
+        if (seq < released || seq >= size) {
+            throw new IndexOutOfBoundsException("Measurement " + seq + " is not retained, retained range is [" + released + ", " + size + ")");
+        }
+        return (int) ((seq - released) >>> CHUNK_BITS);
+    }
+
+    private WindowStats addWindow(WindowStats window) {
+        for (long seq = released; seq < size; seq++) { //补上还保留着的历史
+            window.onAppend(seq);
+        }
+        windows = Arrays.copyOf(windows, windows.length + 1);
+        windows[windows.length - 1] = window;
+        return window;
+    }
+
+    //只在开新块之前调用，此时已有的块都是满的；从最旧的块开始，整块都不在任何窗口内且都超过保留时长才释放
+    private void releaseChunks(long now) {
+        long keepFrom = size;
+        for (int i = 0; i < windows.length; i++) {
+            keepFrom = Math.min(keepFrom, windows[i].first());
+        }
+        int full = (int) ((size - released) >>> CHUNK_BITS);
+        int count = 0;
+        while (count < full && released + (long) (count + 1) * CHUNK_SIZE <= keepFrom
+                && now - timestamps[count][CHUNK_MASK] > retentionMillis) {
+            count++;
+        }
+        if (count == 0) {
+            return;
+        }
+        System.arraycopy(timestamps, count, timestamps, 0, full - count); //只搬动块的引用
+        System.arraycopy(columns[TEMPERATURE], count, columns[TEMPERATURE], 0, full - count);
+        System.arraycopy(columns[PRESSURE], count, columns[PRESSURE], 0, full - count);
+        Arrays.fill(timestamps, full - count, full, null);
+        Arrays.fill(columns[TEMPERATURE], full - count, full, null);
+        Arrays.fill(columns[PRESSURE], full - count, full, null);
+        released += (long) count * CHUNK_SIZE;
+    }
+
+    private void addChunk() {
+        int chunk = (int) ((size - released) >>> CHUNK_BITS);
+        if (chunk == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, chunk * 2); //只复制块的引用，已写入的数据不会搬动
+            columns[TEMPERATURE] = Arrays.copyOf(columns[TEMPERATURE], chunk * 2);
+            columns[PRESSURE] = Arrays.copyOf(columns[PRESSURE], chunk * 2);
+        }
+        timestamps[chunk] = new long[CHUNK_SIZE];
+        columns[TEMPERATURE][chunk] = new float[CHUNK_SIZE];
+        columns[PRESSURE][chunk] = new float[CHUNK_SIZE];
+    }
+}
+
+public class WindowStats {
+    private final MeasurementHistory history;
+    private final int column;
+    private final int maxCount;
+    private final long maxMillis;
+    private long first; //窗口内第一个测量的序号
+    private long end;   //窗口内最后一个测量的下一个序号
+    private double sum;
+    private final SequenceDeque minQueue = new SequenceDeque(); //队首为窗口内的最小值，队内值单调递增
+    private final SequenceDeque maxQueue = new SequenceDeque(); //队首为窗口内的最大值，队内值单调递减
+
+    WindowStats(MeasurementHistory history, int column, int maxCount, long maxMillis) {
+        this.history = history;
+        this.column = column;
+        this.maxCount = maxCount;
+        this.maxMillis = maxMillis;
+        this.first = this.end = history.getFirstRetained();
+    }
+
+    //窗口还需要的最早序号，历史记录不会释放它及之后的测量值
+    long first() {
+        return first;
+    }
+
+    void onAppend(long seq) {
+        float value = history.get(column, seq);
+        end = seq + 1;
+        sum += value;
+        while (!minQueue.isEmpty() && history.get(column, minQueue.peekLast()) >= value) {
+            minQueue.pollLast();
+        }
+        minQueue.addLast(seq);
+        while (!maxQueue.isEmpty() && history.get(column, maxQueue.peekLast()) <= value) {
+            maxQueue.pollLast();
+        }
+        maxQueue.addLast(seq);
+        evict(history.getTimestamp(seq));
+    }
+
+    //数据源停了也要让按时间的窗口随时间滑动，所以读取统计值前再按当前时间淘汰一次（与记录时间戳用的是同一个时钟）
+    private void expire() {
+        if (maxMillis != Long.MAX_VALUE) {
+            evict(history.now());
+        }
+    }
+
+    private void evict(long now) {
+        while (end - first > maxCount || (maxMillis != Long.MAX_VALUE && first < end && now - history.getTimestamp(first) > maxMillis)) {
+            sum -= history.get(column, first);
+            if (minQueue.peekFirst() == first) {
+                minQueue.pollFirst();
+            }
+            if (maxQueue.peekFirst() == first) {
+                maxQueue.pollFirst();
+            }
+            first++;
+        }
+    }
+
+    public long getCount() {
+        synchronized (history) { expire(); return end - first; }
+    }
+
+    public double getAverage() {
+        synchronized (history) { expire(); return end == first ? Double.NaN : sum / (end - first); }
+    }
+
+    public float getMin() {
+        synchronized (history) { expire(); return minQueue.isEmpty() ? Float.NaN : history.get(column, minQueue.peekFirst()); }
+    }
+
+    public float getMax() {
+        synchronized (history) { expire(); return maxQueue.isEmpty() ? Float.NaN : history.get(column, maxQueue.peekFirst()); }
+    }
+}
+
+//保存序号的双端队列，底层是可扩容的long环形数组，稳定后不再分配对象
+class SequenceDeque {
+    private long[] elements = new long[16];
+    private int head;
+    private int size;
+
+    boolean isEmpty() { return size == 0; }
+    long peekFirst() { return elements[head]; }
+    long peekLast() { return elements[(head + size - 1) & (elements.length - 1)]; }
+
+    void addLast(long value) {
+        if (size == elements.length) {
+            long[] grown = new long[elements.length * 2];
+            for (int i = 0; i < size; i++) {
+                grown[i] = elements[(head + i) & (elements.length - 1)];
+            }
+            elements = grown;
+            head = 0;
+        }
+        elements[(head + size++) & (elements.length - 1)] = value;
+    }
+
+    void pollFirst() {
+        head = (head + 1) & (elements.length - 1);
+        size--;
+    }
+
+    void pollLast() {
+        size--;
+    }
+}
+
+//用法：先把历史记录注册到主题上，再向它要需要的窗口统计，显示装置每次更新时直接读取即可
+//MeasurementHistory history = new MeasurementHistory(); //或new MeasurementHistory(clock, retentionMillis)，额外保留一段原始历史供get()读取
+//weatherData.registerObserver(history);
+//WindowStats lastHour = history.lastMillis(MeasurementHistory.TEMPERATURE, 3600 * 1000L);
+//float max = lastHour.getMax();
+
+//方案九，无锁的拉模型主题（版本化快照）
+//方案三中的java.util.Observable每次setChanged()和notifyObservers()都要获取对象锁，观察者还要instanceof后强转回WeatherData3再调用getter，读到的温度和气压也可能不是同一次测量的。
+//这里主题每次测量都发布一个不可变的快照，快照带有单调递增的版本号：通知时直接把快照交给观察者，观察者也可以随时通过getSnapshot()主动来拉，整个过程都不需要加锁。
+//观察者只要记住上次读过的版本号，就能判断自上次以来数据有没有变化。
+
+public final class Measurement {
+    private final long version;
+    private final float temperature;
+    private final float pressure;
+
+    Measurement(long version, float temperature, float pressure) {
+        this.version = version;
+        this.temperature = temperature;
+        this.pressure = pressure;
+    }
+
+    public long getVersion() { return version; }
+    public float getTemperature() { return temperature; }
+    public float getPressure() { return pressure; }
+}
+
+public interface SnapshotObserver {
+    public void update(SnapshotWeatherData subject, Measurement snapshot);
+}
+
+public class SnapshotWeatherData {
+    private final AtomicReference<Measurement> current = new AtomicReference<Measurement>(new Measurement(0, 0f, 0f));
+    private final AtomicReference<SnapshotObserver[]> observers = new AtomicReference<SnapshotObserver[]>(new SnapshotObserver[0]);
+
+    public void addObserver(SnapshotObserver o) {
+        for (;;) {
+            SnapshotObserver[] old = observers.get();
+            SnapshotObserver[] next = Arrays.copyOf(old, old.length + 1);
+            next[old.length] = o;
+            if (observers.compareAndSet(old, next)) {
+                return;
+            }
+        }
+    }
+
+    public void addObservers(SnapshotObserver[] batch) {
+        for (;;) {
+            SnapshotObserver[] old = observers.get();
+            SnapshotObserver[] next = Arrays.copyOf(old, old.length + batch.length);
+            System.arraycopy(batch, 0, next, old.length, batch.length);
+            if (observers.compareAndSet(old, next)) {
+                return;
+            }
+        }
+    }
+
+    public void deleteObserver(SnapshotObserver o) {
+        for (;;) {
+            SnapshotObserver[] old = observers.get();
+            List<SnapshotObserver> next = new ArrayList<SnapshotObserver>(Arrays.asList(old));
+            if (!next.remove(o) || observers.compareAndSet(old, next.toArray(new SnapshotObserver[0]))) {
+                return;
+            }
+        }
+    }
+
+    public Measurement getSnapshot() {
+        return current.get();
+    }
+
+    public void setMeasurements(float temperature, float pressure) {
+        Measurement old;
+        Measurement next;
+        do {
+            old = current.get();
+            next = new Measurement(old.getVersion() + 1, temperature, pressure);
+        } while (!current.compareAndSet(old, next)); //多个数据源同时写入时，版本号仍然严格递增
+        notifyObservers(next);
+    }
+
+    private void notifyObservers(Measurement snapshot) {
+        SnapshotObserver[] snapshotObservers = observers.get();
+        for (int i = 0; i < snapshotObservers.length; i++) {
+            snapshotObservers[i].update(this, snapshot);
+        }
+    }
+}
+
+public class Displayer3 implements SnapshotObserver, DisplayElement {
+    //多个数据源线程会同时调用update，所以用CAS只让版本号更大的快照替换当前显示的快照，旧快照不会覆盖新快照
+    private final AtomicReference<Measurement> shown = new AtomicReference<Measurement>();
+
+    public Displayer3(SnapshotWeatherData weatherData) {
+        weatherData.addObserver(this);
+    }
+
+    public void update(SnapshotWeatherData subject, Measurement snapshot) {
+        for (;;) {
+            Measurement current = shown.get();
+            if (current != null && current.getVersion() >= snapshot.getVersion()) {
+                return; //已经显示过更新的数据了
+            }
+            if (shown.compareAndSet(current, snapshot)) {
+                break;
+            }
+        }
+        display();
+    }
+
+    public void display() {
+        Measurement measurement = shown.get(); //温度和气压来自同一个快照
+        //... 显示的实现
+    }
+}
+
+//对比测试：8个线程同时写入测量值，比较java.util.Observable（方案三）与快照主题的吞吐
+//import org.openjdk.jmh.annotations.*;
+
+@org.openjdk.jmh.annotations.State(Scope.Benchmark) //State和Measurement与本仓库中的类同名，故写全限定名
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class SnapshotWeatherDataBenchmark {
+    WeatherData3 observable;
+    SnapshotWeatherData snapshot;
+
+    @Setup
+    public void setUp() {
+        observable = new WeatherData3();
+        for (int i = 0; i < 10; i++) {
+            new Displayer2(observable);
+        }
+        snapshot = new SnapshotWeatherData();
+        for (int i = 0; i < 10; i++) {
+            new Displayer3(snapshot);
+        }
+    }
+
+    @Benchmark
+    public void observable() {
+        observable.setMeasurements(1f, 2f);
+    }
+
+    @Benchmark
+    public void snapshot() {
+        snapshot.setMeasurements(1f, 2f);
+    }
+}
+
+//方案十，每个观察者独占一个虚拟线程（Java 21）
+//若某个观察者的display()是阻塞的（写屏幕或socket），前面的同步方案会拖慢其它观察者和数据源；而用平台线程池隔离又撑不住几十万个显示装置。
+//这里每注册一个观察者，就为它创建一个有界的信箱和一个虚拟线程，数据源只负责把测量值投递到各个信箱。信箱满时的处理策略可配置：阻塞等待、丢弃最旧的、丢弃最新的。
+//信箱底层是两个float数组组成的环形队列，用ReentrantLock而不是synchronized，避免虚拟线程阻塞时钉住载体线程。
+//import java.util.concurrent.locks.Condition;
+//import java.util.concurrent.locks.ReentrantLock;
+
+public enum OverflowPolicy {
+    BLOCK,       //数据源等待信箱有空位（对该观察者不丢数据，但会反压数据源）
+    DROP_OLDEST, //丢掉信箱中最旧的测量值，为新值腾位置
+    DROP_NEWEST  //直接丢掉这次的新值
+}
+
+public class VirtualThreadWeatherData implements Subject {
+    private final int mailboxCapacity;
+    private final OverflowPolicy policy;
+    private final Map<Observer, Mailbox> mailboxes = new ConcurrentHashMap<Observer, Mailbox>();
+    private final AtomicReference<Mailbox[]> snapshot = new AtomicReference<Mailbox[]>(new Mailbox[0]);
+    private final Thread.Builder threadBuilder = Thread.ofVirtual().name("observer-", 0); //每启动一个线程编号加一，只在持有this锁时使用
+    private volatile float temperature;
+    private volatile float pressure;
+
+    public VirtualThreadWeatherData(int mailboxCapacity, OverflowPolicy policy) {
+        this.mailboxCapacity = mailboxCapacity;
+        this.policy = policy;
+    }
+
+    public synchronized void registerObserver(Observer o) {
+        if (mailboxes.containsKey(o)) {
+            return;
+        }
+        Mailbox mailbox = new Mailbox(o, mailboxCapacity, policy);
+        mailboxes.put(o, mailbox);
+        //与ConcurrentWeatherData一样写时复制，只追加一个元素，不必每次都从map重建整个数组
+        Mailbox[] current = snapshot.get();
+        Mailbox[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = mailbox;
+        snapshot.set(next);
+        mailbox.thread = threadBuilder.start(mailbox);
+    }
+
+    //一次注册一批观察者，只复制一次快照；逐个注册n个观察者要复制n次，总代价是O(n²)
+    public synchronized void registerObservers(Observer[] batch) {
+        Mailbox[] current = snapshot.get();
+        Mailbox[] next = Arrays.copyOf(current, current.length + batch.length);
+        int n = current.length;
+        for (int i = 0; i < batch.length; i++) {
+            if (mailboxes.containsKey(batch[i])) {
+                continue; //已经注册过，或在这一批中重复出现
+            }
+            Mailbox mailbox = new Mailbox(batch[i], mailboxCapacity, policy);
+            mailboxes.put(batch[i], mailbox);
+            next[n++] = mailbox;
+        }
+        snapshot.set(n == next.length ? next : Arrays.copyOf(next, n));
+        for (int i = current.length; i < n; i++) {
+            next[i].thread = threadBuilder.start(next[i]);
+        }
+    }
+
+    public synchronized void removeObserver(Observer o) {
+        Mailbox mailbox = mailboxes.remove(o);
+        if (mailbox != null) {
+            Mailbox[] current = snapshot.get();
+            int i = 0;
+            while (current[i] != mailbox) {
+                i++;
+            }
+            Mailbox[] next = new Mailbox[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+            snapshot.set(next);
+            mailbox.close();
+        }
+    }
+
+    public void notifyObservers() {
+        Mailbox[] current = snapshot.get();
+        for (int i = 0; i < current.length; i++) {
+            current[i].offer(temperature, pressure);
+        }
+    }
+
+    public void measurementsChanged() {
+        notifyObservers();
+    }
+
+    public void setMeasurements(float temperature, float pressure) {
+        this.temperature = temperature;
+        this.pressure = pressure;
+        measurementsChanged();
+    }
+
+    public long getDroppedCount(Observer o) {
+        Mailbox mailbox = mailboxes.get(o);
+        return mailbox == null ? 0 : mailbox.dropped.sum();
+    }
+
+    public long getFailureCount(Observer o) {
+        Mailbox mailbox = mailboxes.get(o);
+        return mailbox == null ? 0 : mailbox.failures.sum();
+    }
+
+    static class Mailbox implements Runnable {
+        final Observer observer;
+        final OverflowPolicy policy;
+        final float[] temperatures;
+        final float[] pressures;
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition notEmpty = lock.newCondition();
+        final Condition notFull = lock.newCondition();
+        int head;
+        int count;
+        boolean closed;
+        final LongAdder dropped = new LongAdder(); //在锁内累加，在锁外读取
+        final LongAdder failures = new LongAdder(); //observer.update抛出异常的次数
+        Thread thread;
+
+        Mailbox(Observer observer, int capacity, OverflowPolicy policy) {
+            this.observer = observer;
+            this.policy = policy;
+            this.temperatures = new float[capacity];
+            this.pressures = new float[capacity];
+        }
+
+        void offer(float temperature, float pressure) {
+            lock.lock();
+            try {
+                if (closed) {
+                    return; //观察者已被移除，拿着旧快照的通知直接丢弃
+                }
+                if (count == temperatures.length) {
+                    if (policy == OverflowPolicy.DROP_NEWEST) {
+                        dropped.increment();
+                        return;
+                    } else if (policy == OverflowPolicy.DROP_OLDEST) {
+                        head = (head + 1) % temperatures.length;
+                        count--;
+                        dropped.increment();
+                    } else {
+                        while (count == temperatures.length && !closed) {
+                            notFull.awaitUninterruptibly();
+                        }
+                        if (closed) {
+                            return;
+                        }
+                    }
+                }
+                int tail = (head + count) % temperatures.length;
+                temperatures[tail] = temperature;
+                pressures[tail] = pressure;
+                count++;
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        //移除观察者时调用：唤醒所有在BLOCK策略下等待空位的数据源线程，并唤醒等待新测量值的虚拟线程让它退出。
+        //只靠interrupt()不够：阻塞的display()可能自己捕获了InterruptedException，中断标记就被清掉了
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                notFull.signalAll();
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            thread.interrupt();
+        }
+
+        public void run() {
+            try {
+                for (;;) {
+                    float temperature;
+                    float pressure;
+                    lock.lock();
+                    try {
+                        while (count == 0 && !closed) {
+                            notEmpty.await();
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        temperature = temperatures[head];
+                        pressure = pressures[head];
+                        head = (head + 1) % temperatures.length;
+                        count--;
+                        notFull.signal();
+                    } finally {
+                        lock.unlock();
+                    }
+                    try {
+                        observer.update(temperature, pressure); //在锁外调用，阻塞的display()只会挂起这个虚拟线程
+                    } catch (RuntimeException e) {
+                        failures.increment(); //继续消费，否则BLOCK策略下数据源会永远等待，丢弃策略下这个观察者也再收不到更新
+                    }
+                }
+            } catch (InterruptedException e) {
+                //观察者被移除，线程结束
+            }
+        }
+    }
+}
+
+//注意BLOCK策略下，一个卡死的观察者最终还是会反压数据源，需要隔离时应选择两种丢弃策略之一。
+
+//性能测试：用JMH比较各种通知方式的扇出开销
+//覆盖1、100、1万、100万个观察者，分单线程通知和另一线程同时注册/移除两种场景；
+//Throughput模式看吞吐，SampleTime模式看p99延迟，加上gc profiler看分配速率（gc.alloc.rate.norm）。
+//异步的几种方式（AsyncWeatherData、VirtualThreadWeatherData、ConflatingObserver）在notifyOnly中只测得到投递的开销，
+//所以另有endToEnd一组：发布一个测量值后一直等到所有观察者都收到为止，SampleTime模式下就是端到端的扇出延迟。
+//FilteredWeatherData用变化幅度订阅（delta为1到100），每次更新只有一部分观察者会被通知。
+//所有方式都用批量注册在@Setup中一次建好观察者数组，覆盖到100万个观察者。
+//只有WeatherData3例外：java.util.Observable.addObserver每次都要线性查重，又没有批量注册的办法，100万个观察者光准备就要约5×10¹¹次操作，
+//所以它单独放在ObservableFanOutBenchmark中，只跑到1万。
+//import java.util.concurrent.ExecutorService;
+//import java.util.concurrent.Executors;
+//import org.openjdk.jmh.annotations.*;
+//import org.openjdk.jmh.profile.GCProfiler;
+//import org.openjdk.jmh.runner.Runner;
+//import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+@org.openjdk.jmh.annotations.State(Scope.Group) //State和Measurement与本仓库中的类同名，故写全限定名
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Warmup(iterations = 3, time = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObserverFanOutBenchmark {
+    @Param({"1", "100", "10000", "1000000"})
+    int observerCount;
+
+    @Param({"WeatherData2", "ConcurrentWeatherData", "SnapshotWeatherData", "FilteredWeatherData",
+            "AsyncWeatherData", "VirtualThreadWeatherData", "ConflatingObserver"})
+    String dispatch;
+
+    WeatherData2 weatherData2;
+    ConcurrentWeatherData concurrentWeatherData;
+    SnapshotWeatherData snapshotWeatherData;
+    FilteredWeatherData filteredWeatherData;
+    AsyncWeatherData asyncWeatherData;
+    VirtualThreadWeatherData virtualThreadWeatherData;
+    ExecutorService executor;
+    Observer[] observers;
+    Observer churnObserver;
+    final LongAdder delivered = new LongAdder(); //所有观察者收到的更新总数，endToEnd据此判断扇出是否完成
+    int counter;
+    float value;
+
+    @Setup
+    public void setUp() {
+        observers = new Observer[observerCount];
+        for (int i = 0; i < observerCount; i++) {
+            observers[i] = newObserver(); //各不相同的实例，VirtualThreadWeatherData等按观察者去重
+        }
+        churnObserver = newObserver();
+        if (dispatch.equals("WeatherData2")) {
+            weatherData2 = new WeatherData2();
+            for (int i = 0; i < observerCount; i++) {
+                weatherData2.registerObserver(observers[i]);
+            }
+        } else if (dispatch.equals("ConcurrentWeatherData")) {
+            concurrentWeatherData = new ConcurrentWeatherData();
+            concurrentWeatherData.registerObservers(observers);
+        } else if (dispatch.equals("SnapshotWeatherData")) {
+            snapshotWeatherData = new SnapshotWeatherData();
+            SnapshotObserver[] snapshotObservers = new SnapshotObserver[observerCount];
+            for (int i = 0; i < observerCount; i++) {
+                snapshotObservers[i] = newSnapshotObserver();
+            }
+            snapshotWeatherData.addObservers(snapshotObservers);
+        } else if (dispatch.equals("FilteredWeatherData")) {
+            filteredWeatherData = new FilteredWeatherData();
+            for (int i = 0; i < observerCount; i++) {
+                filteredWeatherData.registerDelta(observers[i], 1 + i % 100);
+            }
+            filteredWeatherData.setMeasurements(value, value); //第一个测量值作为变化幅度的基准
+        } else if (dispatch.equals("AsyncWeatherData")) {
+            asyncWeatherData = new AsyncWeatherData(1024, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+            asyncWeatherData.registerObservers(observers);
+        } else if (dispatch.equals("VirtualThreadWeatherData")) {
+            virtualThreadWeatherData = new VirtualThreadWeatherData(16, OverflowPolicy.DROP_OLDEST);
+            virtualThreadWeatherData.registerObservers(observers);
+        } else {
+            executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            concurrentWeatherData = new ConcurrentWeatherData();
+            Observer[] conflating = new Observer[observerCount];
+            for (int i = 0; i < observerCount; i++) {
+                conflating[i] = new ConflatingObserver(observers[i], executor);
+            }
+            concurrentWeatherData.registerObservers(conflating);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (asyncWeatherData != null) {
+            asyncWeatherData.shutdown();
+        }
+        if (virtualThreadWeatherData != null) {
+            for (int i = 0; i < observers.length; i++) {
+                virtualThreadWeatherData.removeObserver(observers[i]); //结束各自的虚拟线程
+            }
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    @Group("notifyOnly")
+    public void notifyOnly() {
+        publish();
+    }
+
+    //发布一个测量值并等到所有观察者都收到。同步的方式在publish()返回时就已经送达，这里只有异步的方式需要等待
+    @Benchmark
+    @Group("endToEnd")
+    public void endToEnd() {
+        long expected = delivered.sum() + observerCount;
+        publish();
+        if (isAsync()) {
+            while (delivered.sum() < expected) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("notifyWithChurn")
+    @GroupThreads(1)
+    public void notifyWithChurn() {
+        publish();
+    }
+
+    //与notifyWithChurn同组并发运行，持续注册和移除观察者。WeatherData2不是线程安全的，这一组中它的结果只用于说明问题（可能抛出异常）
+    @Benchmark
+    @Group("notifyWithChurn")
+    @GroupThreads(1)
+    public void churn() {
+        if (dispatch.equals("WeatherData2")) {
+            weatherData2.registerObserver(churnObserver);
+            weatherData2.removeObserver(churnObserver);
+        } else if (dispatch.equals("ConcurrentWeatherData")) {
+            concurrentWeatherData.registerObserver(churnObserver);
+            concurrentWeatherData.removeObserver(churnObserver);
+        } else if (dispatch.equals("ConflatingObserver")) {
+            Observer conflating = new ConflatingObserver(churnObserver, executor);
+            concurrentWeatherData.registerObserver(conflating);
+            concurrentWeatherData.removeObserver(conflating);
+        } else if (dispatch.equals("SnapshotWeatherData")) {
+            Displayer3 displayer = new Displayer3(snapshotWeatherData);
+            snapshotWeatherData.deleteObserver(displayer);
+        } else if (dispatch.equals("FilteredWeatherData")) {
+            filteredWeatherData.registerDelta(churnObserver, 1f);
+            filteredWeatherData.removeObserver(churnObserver);
+        } else if (dispatch.equals("AsyncWeatherData")) {
+            asyncWeatherData.registerObserver(churnObserver);
+            asyncWeatherData.removeObserver(churnObserver);
+        } else {
+            virtualThreadWeatherData.registerObserver(churnObserver);
+            virtualThreadWeatherData.removeObserver(churnObserver);
+        }
+    }
+
+    private void publish() {
+        value = nextValue();
+        if (dispatch.equals("WeatherData2")) {
+            weatherData2.setMeasurements(value, value);
+        } else if (dispatch.equals("ConcurrentWeatherData") || dispatch.equals("ConflatingObserver")) {
+            concurrentWeatherData.setMeasurements(value, value);
+        } else if (dispatch.equals("SnapshotWeatherData")) {
+            snapshotWeatherData.setMeasurements(value, value);
+        } else if (dispatch.equals("FilteredWeatherData")) {
+            filteredWeatherData.setMeasurements(value, value);
+        } else if (dispatch.equals("AsyncWeatherData")) {
+            asyncWeatherData.setMeasurements(value, value);
+        } else {
+            virtualThreadWeatherData.setMeasurements(value, value);
+        }
+    }
+
+    //在0到1023之间循环；float每次加1到2^24之后就不再变化，FilteredWeatherData再也不会越过任何变化幅度
+    private float nextValue() {
+        return counter++ & 1023;
+    }
+
+    private boolean isAsync() {
+        return dispatch.equals("AsyncWeatherData") || dispatch.equals("VirtualThreadWeatherData")
+                || dispatch.equals("ConflatingObserver");
+    }
+
+    private Observer newObserver() {
+        return new Observer() {
+            public void update(float temp, float pressure) {
+                delivered.increment();
+            }
+        };
+    }
+
+    private SnapshotObserver newSnapshotObserver() {
+        return new SnapshotObserver() {
+            public void update(SnapshotWeatherData subject, Measurement snapshot) {
+                delivered.increment();
+            }
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .include(ObserverFanOutBenchmark.class.getSimpleName())
+                .include(ObservableFanOutBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
+
+//java.util.Observable（WeatherData3）的扇出测试，场景与ObserverFanOutBenchmark相同；Displayer2在构造时自己注册，每次注册都要线性查重，所以只到1万个观察者
+@org.openjdk.jmh.annotations.State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@Warmup(iterations = 3, time = 1)
+@org.openjdk.jmh.annotations.Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObservableFanOutBenchmark {
+    @Param({"1", "100", "10000"})
+    int observerCount;
+
+    WeatherData3 weatherData3;
+    int counter;
+
+    @Setup
+    public void setUp() {
+        weatherData3 = new WeatherData3();
+        for (int i = 0; i < observerCount; i++) {
+            new Displayer2(weatherData3);
+        }
+    }
+
+    @Benchmark
+    @Group("notifyOnly")
+    public void notifyOnly() {
+        publish();
+    }
+
+    @Benchmark
+    @Group("notifyWithChurn")
+    @GroupThreads(1)
+    public void notifyWithChurn() {
+        publish();
+    }
+
+    @Benchmark
+    @Group("notifyWithChurn")
+    @GroupThreads(1)
+    public void churn() {
+        Displayer2 displayer = new Displayer2(weatherData3);
+        weatherData3.deleteObserver(displayer);
+    }
+
+    private void publish() {
+        float value = counter++ & 1023;
+        weatherData3.setMeasurements(value, value);
+    }
+}
+
  //总结，观察者模式定义了对象之间的一对多依赖，这样一来，当一个对象改变状态时，它的所有依赖者都会收到通知并自动更新。
\ No newline at end of file